@@ -0,0 +1,290 @@
+package uk.org.elsie.osgi.promises;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import uk.org.elsie.osgi.promises.internal.BufferPool;
+import uk.org.elsie.osgi.promises.internal.ChannelOperation;
+
+/**
+ * Adapts asynchronous file and socket channels to promises. Each method
+ * starts the I/O and returns straight away; the promise is settled from
+ * the channel's completion handler, so nothing blocks waiting for it.
+ * <p>
+ * Reads which don't take a buffer read into a pooled direct buffer, and
+ * resolve with it flipped ready for reading. Pass it back to
+ * releaseBuffer when done with it. Writes carry on until every byte
+ * has been written. Byte counts, of reads and writes alike, are always
+ * resolved as a Long.
+ * <p>
+ * Cancelling with mayInterruptIfRunning closes the channel, as that is
+ * the only way to stop pending I/O on it. Cancelling without it fails.
+ * @author chris
+ */
+public class AsyncChannels {
+	private PromisesService promises;
+	private BufferPool pool;
+
+	public AsyncChannels(PromisesService promises) {
+		this(promises, 64 * 1024, 64);
+	}
+
+	/**
+	 * @param bufferSize the size of the pooled buffers.
+	 * @param maxPooled the most buffers to keep in the pool.
+	 */
+	public AsyncChannels(PromisesService promises, int bufferSize, int maxPooled) {
+		this.promises = promises;
+		this.pool = new BufferPool(bufferSize, maxPooled);
+	}
+
+	public ByteBuffer acquireBuffer() {
+		return pool.acquire();
+	}
+
+	public void releaseBuffer(ByteBuffer buffer) {
+		pool.release(buffer);
+	}
+
+	/**
+	 * @return a promise of the number of bytes read, or -1 at the end of the file.
+	 */
+	public Promise read(final AsynchronousFileChannel channel, final ByteBuffer dst, final long position) {
+		return new ChannelOperation<Integer>(promises, channel) {
+			@Override
+			protected void begin() {
+				channel.read(dst, position, null, this);
+			}
+
+			@Override
+			protected void step(Integer result) {
+				finish(result.longValue());
+			}
+		}.start();
+	}
+
+	/**
+	 * Reads into a pooled buffer.
+	 * @return a promise of the flipped buffer, which is empty at the end of the file.
+	 */
+	public Promise read(final AsynchronousFileChannel channel, final long position) {
+		final ByteBuffer dst = pool.acquire();
+		return new ChannelOperation<Integer>(promises, channel) {
+			@Override
+			protected void begin() {
+				channel.read(dst, position, null, this);
+			}
+
+			@Override
+			protected void step(Integer result) {
+				dst.flip();
+				finish(dst);
+			}
+
+			@Override
+			protected void abandon() {
+				pool.release(dst);
+			}
+		}.start();
+	}
+
+	/**
+	 * Scattering read. File channels have no native scattering read,
+	 * so the buffers are filled one after another, stopping early at
+	 * the end of the file.
+	 * @return a promise of the total number of bytes read, or -1 if already at the end of the file.
+	 */
+	public Promise read(final AsynchronousFileChannel channel, final ByteBuffer[] dsts, final long position) {
+		return new ChannelOperation<Integer>(promises, channel) {
+			private int index = 0;
+			private long total = 0;
+
+			@Override
+			protected void begin() {
+				next();
+			}
+
+			private void next() {
+				while(index < dsts.length && !dsts[index].hasRemaining()) {
+					index++;
+				}
+				if(index == dsts.length) {
+					finish(total);
+				} else {
+					channel.read(dsts[index], position + total, null, this);
+				}
+			}
+
+			@Override
+			protected void step(Integer result) {
+				if(result < 0) {
+					finish(total == 0 ? -1L : total);
+				} else {
+					total += result;
+					next();
+				}
+			}
+		}.start();
+	}
+
+	/**
+	 * @return a promise of the number of bytes written.
+	 */
+	public Promise write(final AsynchronousFileChannel channel, final ByteBuffer src, final long position) {
+		return new ChannelOperation<Integer>(promises, channel) {
+			private long total = 0;
+
+			@Override
+			protected void begin() {
+				channel.write(src, position, null, this);
+			}
+
+			@Override
+			protected void step(Integer result) {
+				total += result;
+				if(src.hasRemaining()) {
+					channel.write(src, position + total, null, this);
+				} else {
+					finish(total);
+				}
+			}
+		}.start();
+	}
+
+	/**
+	 * @return a promise of the channel, once connected.
+	 */
+	public Promise connect(final AsynchronousSocketChannel channel, final SocketAddress remote) {
+		return new ChannelOperation<Void>(promises, channel) {
+			@Override
+			protected void begin() {
+				channel.connect(remote, null, this);
+			}
+
+			@Override
+			protected void step(Void result) {
+				finish(channel);
+			}
+		}.start();
+	}
+
+	/**
+	 * @return a promise of the number of bytes read, or -1 at the end of the stream.
+	 */
+	public Promise read(final AsynchronousSocketChannel channel, final ByteBuffer dst) {
+		return new ChannelOperation<Integer>(promises, channel) {
+			@Override
+			protected void begin() {
+				channel.read(dst, null, this);
+			}
+
+			@Override
+			protected void step(Integer result) {
+				finish(result.longValue());
+			}
+		}.start();
+	}
+
+	/**
+	 * Reads into a pooled buffer.
+	 * @return a promise of the flipped buffer, which is empty at the end of the stream.
+	 */
+	public Promise read(final AsynchronousSocketChannel channel) {
+		final ByteBuffer dst = pool.acquire();
+		return new ChannelOperation<Integer>(promises, channel) {
+			@Override
+			protected void begin() {
+				channel.read(dst, null, this);
+			}
+
+			@Override
+			protected void step(Integer result) {
+				dst.flip();
+				finish(dst);
+			}
+
+			@Override
+			protected void abandon() {
+				pool.release(dst);
+			}
+		}.start();
+	}
+
+	/**
+	 * Scattering read, in a single read on the channel.
+	 * @return a promise of the number of bytes read, or -1 at the end of the stream.
+	 */
+	public Promise read(final AsynchronousSocketChannel channel, final ByteBuffer[] dsts) {
+		return new ChannelOperation<Long>(promises, channel) {
+			@Override
+			protected void begin() {
+				channel.read(dsts, 0, dsts.length, 0, TimeUnit.MILLISECONDS, null, this);
+			}
+
+			@Override
+			protected void step(Long result) {
+				finish(result);
+			}
+		}.start();
+	}
+
+	/**
+	 * @return a promise of the number of bytes written.
+	 */
+	public Promise write(final AsynchronousSocketChannel channel, final ByteBuffer src) {
+		return new ChannelOperation<Integer>(promises, channel) {
+			private long total = 0;
+
+			@Override
+			protected void begin() {
+				channel.write(src, null, this);
+			}
+
+			@Override
+			protected void step(Integer result) {
+				total += result;
+				if(src.hasRemaining()) {
+					channel.write(src, null, this);
+				} else {
+					finish(total);
+				}
+			}
+		}.start();
+	}
+
+	/**
+	 * Gathering write, repeated until all of the buffers have been written.
+	 * @return a promise of the total number of bytes written.
+	 */
+	public Promise write(final AsynchronousSocketChannel channel, final ByteBuffer[] srcs) {
+		return new ChannelOperation<Long>(promises, channel) {
+			private int index = 0;
+			private long total = 0;
+
+			@Override
+			protected void begin() {
+				next();
+			}
+
+			private void next() {
+				while(index < srcs.length && !srcs[index].hasRemaining()) {
+					index++;
+				}
+				if(index == srcs.length) {
+					finish(total);
+				} else {
+					channel.write(srcs, index, srcs.length - index, 0, TimeUnit.MILLISECONDS, null, this);
+				}
+			}
+
+			@Override
+			protected void step(Long result) {
+				total += result;
+				next();
+			}
+		}.start();
+	}
+}
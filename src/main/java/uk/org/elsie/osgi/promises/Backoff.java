@@ -0,0 +1,85 @@
+package uk.org.elsie.osgi.promises;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exponential backoff with jitter, used to space out retry attempts.
+ * The un-jittered delay for attempt n is initialDelay * multiplier^(n-1),
+ * capped at maxDelay. A jitter of 0 uses that delay as is, a jitter of 1
+ * picks uniformly between 0 and that delay ("full jitter") so that many
+ * clients failing together don't all retry at the same moment.
+ * @author chris
+ */
+public class Backoff {
+	private final Random random = new Random();
+	private long initialDelay;
+	private long maxDelay;
+	private TimeUnit units;
+	private double multiplier = 2.0;
+	private double jitter = 1.0;
+
+	public Backoff(long initialDelay, long maxDelay, TimeUnit units) {
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+		this.units = units;
+	}
+
+	public Backoff(long initialDelay, long maxDelay, TimeUnit units, double multiplier, double jitter) {
+		this(initialDelay, maxDelay, units);
+		setMultiplier(multiplier);
+		setJitter(jitter);
+	}
+
+	public long getInitialDelay() {
+		return initialDelay;
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	public TimeUnit getUnits() {
+		return units;
+	}
+
+	public double getMultiplier() {
+		return multiplier;
+	}
+
+	public void setMultiplier(double multiplier) {
+		if(multiplier < 1.0) {
+			throw new IllegalArgumentException("multiplier must be at least 1");
+		}
+		this.multiplier = multiplier;
+	}
+
+	public double getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * @param jitter the fraction of the delay to randomise, between 0 and 1.
+	 */
+	public void setJitter(double jitter) {
+		if(jitter < 0.0 || jitter > 1.0) {
+			throw new IllegalArgumentException("jitter must be between 0 and 1");
+		}
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Computes the delay to wait before the given attempt.
+	 * @param attempt the number of attempts already made, starting at 1.
+	 * @return the delay, in this backoff's units.
+	 */
+	public long getDelay(int attempt) {
+		double delay = initialDelay * Math.pow(multiplier, Math.max(0, attempt - 1));
+		if(delay > maxDelay) {
+			delay = maxDelay;
+		}
+		double fixed = delay * (1.0 - jitter);
+		double random = delay * jitter * this.random.nextDouble();
+		return (long) (fixed + random);
+	}
+}
@@ -0,0 +1,185 @@
+package uk.org.elsie.osgi.promises;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Collects individual keyed lookups into batches.
+ * Each call to load returns a promise straight away. Keys are gathered
+ * until the window expires or the batch is full, then the batch callback
+ * is called once with the distinct keys as a List. It should return, or
+ * return a promise of, either a List of results in the same order as the
+ * keys or a Map from key to result. Results which are failures reject
+ * just that key's promise; a failed batch rejects them all.
+ * @author chris
+ */
+public class BatchLoader {
+	private static Log log = LogFactory.getLog(BatchLoader.class);
+
+	private PromisesService promises;
+	private Callback batchFunction;
+	private int maxBatchSize;
+	private long window;
+	private TimeUnit units;
+	private Batch current = null;
+
+	private class Batch implements Callable<Object> {
+		private Map<Object, Deferred> pending = new LinkedHashMap<Object, Deferred>();
+		private Future<Object> timer;
+		private boolean dispatched = false;
+
+		@Override
+		public Object call() throws Exception {
+			dispatch(this);
+			return null;
+		}
+	}
+
+	public BatchLoader(PromisesService promises, Callback batchFunction, int maxBatchSize, long window, TimeUnit units) {
+		if(maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be at least 1");
+		}
+		this.promises = promises;
+		this.batchFunction = batchFunction;
+		this.maxBatchSize = maxBatchSize;
+		this.window = window;
+		this.units = units;
+	}
+
+	/**
+	 * Adds key to the current batch, or shares the pending promise
+	 * if the key is already in it.
+	 * @return a promise for the key's result.
+	 */
+	public Promise load(Object key) {
+		Batch full = null;
+		Deferred d;
+		synchronized (this) {
+			if(current == null) {
+				current = new Batch();
+				current.timer = promises.schedule(current, window, units);
+			}
+			d = current.pending.get(key);
+			if(d == null) {
+				d = promises.defer();
+				current.pending.put(key, d);
+				if(current.pending.size() >= maxBatchSize) {
+					full = current;
+					current = null;
+				}
+			}
+		}
+		if(full != null) {
+			full.timer.cancel(false);
+			promises.submit(full);
+		}
+		return d.getPromise();
+	}
+
+	/**
+	 * Dispatches the current batch without waiting for the window to expire.
+	 */
+	public void flush() {
+		Batch batch;
+		synchronized (this) {
+			batch = current;
+			current = null;
+		}
+		if(batch != null) {
+			batch.timer.cancel(false);
+			dispatch(batch);
+		}
+	}
+
+	protected void dispatch(Batch batch) {
+		synchronized (this) {
+			if(batch.dispatched) {
+				return;
+			}
+			batch.dispatched = true;
+			if(current == batch) {
+				current = null;
+			}
+		}
+
+		final Map<Object, Deferred> pending = batch.pending;
+		List<Object> keys = new ArrayList<Object>(pending.keySet());
+		log.debug("dispatching batch of " + keys.size());
+
+		Object result;
+		try {
+			result = batchFunction.callback(keys);
+		} catch (RuntimeException e) {
+			rejectAll(pending, ExpectedFailureException.unwrap(e));
+			return;
+		}
+
+		if(promises.isPromise(result)) {
+			((Promise) result).then(new Callback() {
+				@Override
+				public Object callback(Object input) {
+					distribute(pending, input);
+					return null;
+				}
+			}, new Callback() {
+				@Override
+				public Object callback(Object input) {
+					rejectAll(pending, input);
+					return null;
+				}
+			});
+		} else if(promises.isFailure(result)) {
+			rejectAll(pending, result);
+		} else {
+			distribute(pending, result);
+		}
+	}
+
+	protected void distribute(Map<Object, Deferred> pending, Object result) {
+		if(result instanceof List) {
+			List<?> values = (List<?>) result;
+			int i = 0;
+			for(Map.Entry<Object, Deferred> e : pending.entrySet()) {
+				if(i < values.size()) {
+					settle(e.getValue(), values.get(i));
+				} else {
+					e.getValue().reject(new CallbackFailure("no result for key " + e.getKey()));
+				}
+				i++;
+			}
+		} else if(result instanceof Map) {
+			Map<?, ?> values = (Map<?, ?>) result;
+			for(Map.Entry<Object, Deferred> e : pending.entrySet()) {
+				if(values.containsKey(e.getKey())) {
+					settle(e.getValue(), values.get(e.getKey()));
+				} else {
+					e.getValue().reject(new CallbackFailure("no result for key " + e.getKey()));
+				}
+			}
+		} else {
+			rejectAll(pending, new CallbackFailure("batch function must return a List or Map but returned " + result));
+		}
+	}
+
+	private void settle(Deferred d, Object value) {
+		if(promises.isFailure(value)) {
+			d.reject(value);
+		} else {
+			d.resolve(value);
+		}
+	}
+
+	private void rejectAll(Map<Object, Deferred> pending, Object reason) {
+		for(Deferred d : pending.values()) {
+			d.reject(reason);
+		}
+	}
+}
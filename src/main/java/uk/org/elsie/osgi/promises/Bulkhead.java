@@ -0,0 +1,13 @@
+package uk.org.elsie.osgi.promises;
+
+/**
+ * Limits the number of operations in progress at once. Each permit
+ * handed out by acquire must be given back with release.
+ */
+public interface Bulkhead extends Throttle {
+	void release();
+
+	int getMaxConcurrent();
+
+	int getAvailablePermits();
+}
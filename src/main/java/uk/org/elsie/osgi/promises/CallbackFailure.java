@@ -1,8 +1,10 @@
 package uk.org.elsie.osgi.promises;
 
+import java.io.Serializable;
 
+public class CallbackFailure implements Failure, Serializable {
+	private static final long serialVersionUID = 1L;
 
-public class CallbackFailure implements Failure {
 	private Object message;
 	private Throwable proximateCause;
 
@@ -0,0 +1,53 @@
+package uk.org.elsie.osgi.promises;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Guards promise-producing operations against a failing dependency.
+ * Outcomes of recent calls are kept in a sliding window, and once the
+ * failure or slow-call rate crosses its threshold the breaker opens:
+ * calls are rejected straight away without starting the operation.
+ * After the open duration a few probe calls are let through, and the
+ * breaker closes again if they all succeed in time.
+ */
+public interface CircuitBreaker {
+	enum State {
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+
+	/**
+	 * Calls operation if the breaker allows it.
+	 * @return the operation's result as a promise, or a promise rejected
+	 * with the breaker's open failure if it was not called.
+	 */
+	Promise execute(Callback operation);
+
+	/**
+	 * @return a callback which runs operation through this breaker.
+	 */
+	Callback wrap(Callback operation);
+
+	State getState();
+
+	/**
+	 * The failure passed to errbacks for calls rejected while open.
+	 * The same instance is used every time.
+	 */
+	Failure getOpenFailure();
+
+	void setMinimumCalls(int minimumCalls);
+
+	void setSlowCallThreshold(long duration, TimeUnit units);
+
+	void setSlowCallRateThreshold(double rate);
+
+	void setHalfOpenCalls(int halfOpenCalls);
+
+	/**
+	 * A probe call which has not settled after this long counts as
+	 * failed and opens the breaker again. Defaults to the open duration.
+	 */
+	void setProbeTimeout(long timeout, TimeUnit units);
+}
@@ -26,6 +26,15 @@ public interface Deferred extends Future<Object>, Canceller {
 	 */
 	public abstract void setCanceller(Canceller canceller);
 
+	/**
+	 * Sets the priority at which callbacks added to this deferred's
+	 * promise are scheduled. Deferreds returned from then inherit it.
+	 * @param priority one of the {@link Priority} values.
+	 */
+	public abstract void setPriority(int priority);
+
+	public abstract int getPriority();
+
 	/**
 	 * Gets a promise token which can be published and used
 	 * for synchronisation or chaining work.
@@ -0,0 +1,53 @@
+package uk.org.elsie.osgi.promises;
+
+import java.util.Collection;
+
+/**
+ * A local journal of durable deferreds. Opening a journal recovers the
+ * deferreds recorded in it, so after a restart handlers can look up the
+ * deferreds they were waiting on by id and attach to them again.
+ * Pending deferreds stay in the journal until forgotten. Settled ones
+ * stay until forgotten or until the journal next starts a new segment,
+ * after which they are no longer recovered.
+ * <p>
+ * Values and reasons are written with Java serialization. Those which
+ * are not Serializable are written as their toString, and come back
+ * as a String, or a {@link CallbackFailure} for a reason.
+ * @author chris
+ */
+public interface DeferredJournal {
+	/**
+	 * @return a new durable deferred with a random id.
+	 */
+	public DurableDeferred defer();
+
+	/**
+	 * @throws IllegalStateException if the id is already in the journal.
+	 */
+	public DurableDeferred defer(String id);
+
+	/**
+	 * @return the deferred with the given id, or null if there is none.
+	 */
+	public DurableDeferred get(String id);
+
+	/**
+	 * @return the deferreds which have not been settled.
+	 */
+	public Collection<DurableDeferred> getPending();
+
+	/**
+	 * Drops a deferred from the journal, so it is not recovered again.
+	 */
+	public void forget(String id);
+
+	/**
+	 * @return a promise which resolves once everything journalled so far is on disk.
+	 */
+	public Promise flush();
+
+	/**
+	 * Writes out anything outstanding and closes the journal.
+	 */
+	public void close();
+}
@@ -0,0 +1,14 @@
+package uk.org.elsie.osgi.promises;
+
+/**
+ * A deferred whose creation and outcome are written to a
+ * {@link DeferredJournal}, so that it survives a restart.
+ * Listeners are notified once the outcome is on disk.
+ * @author chris
+ */
+public interface DurableDeferred extends Deferred {
+	/**
+	 * @return the id to find this deferred by after a restart.
+	 */
+	public String getId();
+}
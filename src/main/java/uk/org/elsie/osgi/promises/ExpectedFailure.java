@@ -0,0 +1,30 @@
+package uk.org.elsie.osgi.promises;
+
+/**
+ * An immutable failure for outcomes which are a normal part of control
+ * flow, such as cancellation, rather than errors. It carries no stack
+ * trace, so creating one is cheap and the shared instances cost nothing.
+ * The failure collector neither tracks nor reports expected failures.
+ * @author chris
+ */
+public class ExpectedFailure extends CallbackFailure {
+	private static final long serialVersionUID = 1L;
+
+	public static final ExpectedFailure CANCELLED = new ExpectedFailure("cancelled");
+	public static final ExpectedFailure TIMED_OUT = new ExpectedFailure("timed out");
+
+	public ExpectedFailure(Object message) {
+		super(message);
+	}
+
+	/**
+	 * @return true if obj is an expected failure, or an exception thrown to signal one.
+	 */
+	public static boolean isExpected(Object obj) {
+		return obj instanceof ExpectedFailure || obj instanceof ExpectedFailureException;
+	}
+
+	public String toString() {
+		return String.valueOf(getMessage());
+	}
+}
@@ -0,0 +1,33 @@
+package uk.org.elsie.osgi.promises;
+
+/**
+ * Thrown from a callback to reject with an expected failure.
+ * The exception has no stack trace; the deferred is rejected with
+ * the failure it carries rather than with the exception itself.
+ * @author chris
+ */
+public class ExpectedFailureException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	private final Failure failure;
+
+	public ExpectedFailureException(Failure failure) {
+		super(String.valueOf(failure), null, false, false);
+		this.failure = failure;
+	}
+
+	public ExpectedFailureException(Object message) {
+		this(new ExpectedFailure(message));
+	}
+
+	public Failure getFailure() {
+		return failure;
+	}
+
+	/**
+	 * @return the failure carried by e if it signals an expected failure, otherwise e.
+	 */
+	public static Object unwrap(Exception e) {
+		return e instanceof ExpectedFailureException ? ((ExpectedFailureException) e).getFailure() : e;
+	}
+}
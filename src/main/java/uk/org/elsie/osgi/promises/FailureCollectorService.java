@@ -1,6 +1,7 @@
 package uk.org.elsie.osgi.promises;
 
 import java.lang.ref.Reference;
+import java.util.Collection;
 
 public interface FailureCollectorService {
 
@@ -8,4 +9,6 @@ public interface FailureCollectorService {
 
 	public abstract void collected(Reference<Object> ref);
 
+	public abstract void collected(Collection<Reference<Object>> refs);
+
 }
\ No newline at end of file
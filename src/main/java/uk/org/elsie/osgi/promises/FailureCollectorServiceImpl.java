@@ -5,6 +5,7 @@ import java.io.StringWriter;
 import java.lang.ref.PhantomReference;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -31,11 +32,30 @@ public class FailureCollectorServiceImpl implements Callable<Object>, Canceller,
 	private TimeUnit units = TimeUnit.SECONDS;
 	private boolean finished = false;
 	private ScheduledFuture<Object> future = null;
+	private int generation = 0;
 	private int maxErrors = 2;
 	private int quota;
 	private int maxPerSecond = 1;
 	private int hardMaxErrors = 20;
 
+	/**
+	 * A scheduled sweep, which only runs if no other loop has been
+	 * started since it was scheduled. Cancelling its future is not
+	 * enough, as it may already be waiting for the lock.
+	 */
+	private class Sweep implements Callable<Object> {
+		private final int generation;
+
+		public Sweep(int generation) {
+			this.generation = generation;
+		}
+
+		@Override
+		public Object call() {
+			return sweep(generation);
+		}
+	}
+
 	public FailureCollectorServiceImpl() {
 	}
 	
@@ -43,8 +63,17 @@ public class FailureCollectorServiceImpl implements Callable<Object>, Canceller,
 		return executorService;
 	}
 	
+	/**
+	 * The executor may be replaced while running; the collector's
+	 * timer moves to the new one and tracked failures are kept.
+	 */
 	public synchronized void setScheduledExecutorService(ScheduledExecutorService executorService) {
 		log.info("Set executor-service");
+		generation++;
+		if(future != null) {
+			future.cancel(false);
+			future = null;
+		}
 		this.executorService = executorService;
 		start();
 	}
@@ -95,6 +124,10 @@ public class FailureCollectorServiceImpl implements Callable<Object>, Canceller,
 
 	@Override
 	public synchronized Reference<Object> failed(Object failure) {
+		if(ExpectedFailure.isExpected(failure)) {
+			return null;
+		}
+
 		if(hardMaxErrors > 0 && messages.size() >= hardMaxErrors) {
 			return null;
 		}
@@ -109,6 +142,13 @@ public class FailureCollectorServiceImpl implements Callable<Object>, Canceller,
 	public synchronized void collected(Reference<Object> ref) {
 		messages.remove(ref);
 	}
+
+	@Override
+	public synchronized void collected(Collection<Reference<Object>> refs) {
+		for(Reference<Object> ref : refs) {
+			messages.remove(ref);
+		}
+	}
 	
 	public String failureObjToString(Object obj) {
 		StringWriter sw = new StringWriter();
@@ -146,6 +186,14 @@ public class FailureCollectorServiceImpl implements Callable<Object>, Canceller,
 
 	@Override
 	public synchronized Object call() {
+		return sweep(generation);
+	}
+
+	private synchronized Object sweep(int generation) {
+		if(generation != this.generation) {
+			// superseded by a loop started since this was scheduled
+			return null;
+		}
 		boolean needsSchedule = true;
 		try {
 			quota = maxErrors;
@@ -177,7 +225,7 @@ public class FailureCollectorServiceImpl implements Callable<Object>, Canceller,
 	private synchronized void schedule(long delay, TimeUnit units) {
 		if(!finished) {
 			log.info("Rescheduling failure collector for " + delay + " " + units);
-			future = executorService.schedule(this, delay, units);
+			future = executorService != null ? executorService.schedule(new Sweep(generation), delay, units) : null;
 		} else {
 			future = null;
 		}
@@ -186,6 +234,7 @@ public class FailureCollectorServiceImpl implements Callable<Object>, Canceller,
 	@Override
 	public synchronized boolean cancel(boolean mayInterruptIfRunning) {
 		finished = true;
+		generation++;
 		if(future != null) {
 			log.info("Stopping failure collector");
 			boolean ret = future.cancel(mayInterruptIfRunning);
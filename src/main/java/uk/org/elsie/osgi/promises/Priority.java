@@ -0,0 +1,19 @@
+package uk.org.elsie.osgi.promises;
+
+/**
+ * Scheduling priorities for continuations. Lower numbers run first
+ * when priority scheduling is enabled on the promises service.
+ */
+public final class Priority {
+	public static final int HIGH = 0;
+	public static final int NORMAL = 1;
+	public static final int LOW = 2;
+
+	/**
+	 * The number of distinct priorities, and so of executor lanes.
+	 */
+	public static final int LANES = 3;
+
+	private Priority() {
+	}
+}
@@ -3,6 +3,14 @@ package uk.org.elsie.osgi.promises;
 import java.util.concurrent.Future;
 
 public interface Promise extends Future<Object>, Canceller {
+	/**
+	 * As then(callback, errback, progressBack), with the callback scheduled
+	 * at the given priority. The returned promise's deferred inherits it,
+	 * and so does the wait for any promise the callback returns.
+	 * @param priority one of the {@link Priority} values.
+	 */
+	Object then(Callback callback, Callback errback, Callback progressBack, int priority);
+
 	Object then(Callback callback, Callback errback, Callback progressBack);
 	
 	Object then(Callback callback, Callback errback);
@@ -0,0 +1,235 @@
+package uk.org.elsie.osgi.promises;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.org.elsie.osgi.promises.internal.FrameConnection;
+import uk.org.elsie.osgi.promises.internal.RemotePromiseImpl;
+import uk.org.elsie.osgi.promises.internal.SelectorLoop;
+import uk.org.elsie.osgi.promises.internal.Wire;
+
+/**
+ * A connection to a {@link PromiseServer} in another process.
+ * The server sends back each outcome when it settles; once it has
+ * arrived the client tells the server to drop the handle, and any later
+ * calls on that promise carry the value itself.
+ * Messages are gathered into a batch which is written on the executor's
+ * next turn, or by flush, so a chain of calls built up in one go
+ * travels to the server in a single write.
+ * @author chris
+ */
+public class PromiseClient implements SelectorLoop.Handler {
+	private static Log log = LogFactory.getLog(PromiseClient.class);
+
+	private PromisesService promises;
+	private SelectorLoop loop = null;
+	private int maxFrameSize = SelectorLoop.DEFAULT_MAX_FRAME_SIZE;
+	private FrameConnection connection = null;
+	private AtomicInteger handles = new AtomicInteger();
+	private Map<Integer, RemotePromiseImpl> pending = new ConcurrentHashMap<Integer, RemotePromiseImpl>();
+	private Wire.Output batch = new Wire.Output();
+	private boolean flushScheduled = false;
+	private volatile boolean closed = false;
+
+	private Callable<Object> flushTask = new Callable<Object>() {
+		@Override
+		public Object call() throws Exception {
+			flush();
+			return null;
+		}
+	};
+
+	public PromiseClient(PromisesService promises) {
+		this.promises = promises;
+	}
+
+	/**
+	 * Sets the largest message accepted from the other side, before connecting.
+	 */
+	public synchronized void setMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	public synchronized void connect(SocketAddress address) throws IOException {
+		if(loop != null) {
+			throw new IllegalStateException("already connected");
+		}
+		SocketChannel channel = SocketChannel.open(address);
+		loop = new SelectorLoop("promises-client", this);
+		loop.setMaxFrameSize(maxFrameSize);
+		connection = loop.add(channel);
+		loop.start();
+	}
+
+	/**
+	 * @return a promise for the value the server exported as id.
+	 */
+	public RemotePromise get(String id) {
+		int handle = handles.incrementAndGet();
+		RemotePromise p = track(handle);
+		synchronized (this) {
+			int start = Wire.startFrame(batch, Wire.IMPORT);
+			Wire.writeVarint(batch, handle);
+			Wire.writeString(batch, id);
+			end(start);
+		}
+		return p;
+	}
+
+	/**
+	 * Sends the current batch now.
+	 */
+	public void flush() {
+		ByteBuffer data;
+		SelectorLoop l;
+		synchronized (this) {
+			flushScheduled = false;
+			if(batch.size() == 0 || loop == null) {
+				return;
+			}
+			data = batch.toByteBuffer();
+			batch = new Wire.Output();
+			l = loop;
+		}
+		l.send(connection, data);
+	}
+
+	public void close() {
+		SelectorLoop l;
+		synchronized (this) {
+			l = loop;
+			loop = null;
+		}
+		if(l != null) {
+			l.close();
+		}
+		failAll("connection closed");
+	}
+
+	/**
+	 * Asks the server to apply function to the promise with the given handle.
+	 */
+	public RemotePromise call(int source, String function) {
+		int handle = handles.incrementAndGet();
+		RemotePromise p = track(handle);
+		synchronized (this) {
+			int start = Wire.startFrame(batch, Wire.CALL);
+			Wire.writeVarint(batch, handle);
+			Wire.writeVarint(batch, source);
+			Wire.writeString(batch, function);
+			end(start);
+		}
+		return p;
+	}
+
+	/**
+	 * Asks the server to apply function to an outcome which has already
+	 * come back, for promises whose handle the server has dropped.
+	 */
+	public RemotePromise call(boolean ok, Object value, String function) {
+		int handle = handles.incrementAndGet();
+		RemotePromise p = track(handle);
+		synchronized (this) {
+			int start = Wire.startFrame(batch, Wire.CALL_VALUE);
+			Wire.writeVarint(batch, handle);
+			batch.write(ok ? 1 : 0);
+			Wire.writeValue(batch, value);
+			Wire.writeString(batch, function);
+			end(start);
+		}
+		return p;
+	}
+
+	/**
+	 * Tells the server an outcome has arrived, so it can drop the handle.
+	 */
+	public void release(int handle) {
+		if(!closed) {
+			send(Wire.RELEASE, handle);
+		}
+	}
+
+	public void cancel(int handle) {
+		if(pending.remove(handle) != null && !closed) {
+			send(Wire.CANCEL, handle);
+		}
+	}
+
+	/**
+	 * Registers the promise for a handle, before its request is sent,
+	 * so the result cannot come back before anything is waiting for it.
+	 */
+	private RemotePromiseImpl track(int handle) {
+		RemotePromiseImpl p = new RemotePromiseImpl(this, promises, handle);
+		if(closed) {
+			p.arrived(false, new CallbackFailure("connection closed"), false);
+		} else {
+			pending.put(handle, p);
+		}
+		return p;
+	}
+
+	private void send(byte op, int handle) {
+		synchronized (this) {
+			int start = Wire.startFrame(batch, op);
+			Wire.writeVarint(batch, handle);
+			end(start);
+		}
+	}
+
+	/**
+	 * Finishes a message, making sure a flush is on its way.
+	 */
+	private void end(int start) {
+		Wire.endFrame(batch, start);
+		if(!flushScheduled) {
+			flushScheduled = true;
+			promises.submit(flushTask);
+		}
+	}
+
+	@Override
+	public void accepted(FrameConnection connection) {
+	}
+
+	@Override
+	public void received(FrameConnection connection, ByteBuffer frame) {
+		byte op = frame.get();
+		if(op != Wire.RESULT) {
+			log.warn("Unknown message " + op);
+			return;
+		}
+		int handle = (int) Wire.readVarint(frame);
+		boolean ok = frame.get() != 0;
+		Object value = Wire.readValue(frame);
+		RemotePromiseImpl p = pending.remove(handle);
+		if(p != null) {
+			p.arrived(ok, value, true);
+		}
+	}
+
+	@Override
+	public void closed(FrameConnection connection) {
+		failAll("connection lost");
+	}
+
+	private void failAll(String reason) {
+		closed = true;
+		List<RemotePromiseImpl> lost = new ArrayList<RemotePromiseImpl>(pending.values());
+		pending.clear();
+		for(RemotePromiseImpl p : lost) {
+			p.arrived(false, new CallbackFailure(reason), false);
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package uk.org.elsie.osgi.promises;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the deferreds created through it, so that work started on behalf
+ * of something like a single request can be abandoned in one go.
+ */
+public interface PromiseScope {
+	/**
+	 * Creates a deferred owned by this scope.
+	 * @throws IllegalStateException if the scope has been closed.
+	 */
+	Deferred defer();
+
+	Deferred defer(Canceller canceller);
+
+	/**
+	 * As {@link PromisesService#delay(long, TimeUnit)}, with the timer
+	 * owned by this scope.
+	 */
+	Promise delay(long time, TimeUnit units);
+
+	Promise delay(long time, TimeUnit units, Object input);
+
+	/**
+	 * Cancels every outstanding deferred in the scope and releases the
+	 * failure collector's references to any that failed unobserved.
+	 * No new deferreds may be created afterwards.
+	 * @return a promise resolved once every deferred in the scope has
+	 * settled. Deferreds without a canceller keep the scope open until
+	 * they are resolved or rejected by their owner.
+	 */
+	Promise close();
+
+	boolean isClosed();
+
+	/**
+	 * @return the number of deferreds in the scope which haven't settled.
+	 */
+	int getOutstanding();
+}
@@ -0,0 +1,318 @@
+package uk.org.elsie.osgi.promises;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.org.elsie.osgi.promises.internal.FrameConnection;
+import uk.org.elsie.osgi.promises.internal.SelectorLoop;
+import uk.org.elsie.osgi.promises.internal.Wire;
+
+/**
+ * Makes promises available to other processes by id, for
+ * {@link PromiseClient}s to import. Clients can also have registered
+ * functions applied to those promises, and to the results of earlier
+ * calls, here in this process. Each call is chained on with then as soon
+ * as it arrives, so calls which depend on each other run one after
+ * another without going back to the client in between.
+ * <p>
+ * Each connection has its own table of the promises its client has
+ * referred to. Outcomes are sent back as they settle, and each entry is
+ * dropped once the client has released or cancelled it, or when the
+ * connection closes, which cancels any still outstanding. Every import is a separate promise following the
+ * exported one, so a client cancelling it leaves the export alone.
+ * @author chris
+ */
+public class PromiseServer implements SelectorLoop.Handler {
+	private static Log log = LogFactory.getLog(PromiseServer.class);
+
+	private PromisesService promises;
+	private Map<String, Object> exported = new ConcurrentHashMap<String, Object>();
+	private Map<String, Callback> functions = new ConcurrentHashMap<String, Callback>();
+	private Set<FrameConnection> connections = Collections.newSetFromMap(new ConcurrentHashMap<FrameConnection, Boolean>());
+	private SelectorLoop loop = null;
+	private int maxFrameSize = SelectorLoop.DEFAULT_MAX_FRAME_SIZE;
+	private ServerSocketChannel server = null;
+
+	public PromiseServer(PromisesService promises) {
+		this.promises = promises;
+	}
+
+	/**
+	 * @param value a promise, or a value to wrap in one.
+	 */
+	public void export(String id, Object value) {
+		exported.put(id, value);
+	}
+
+	public void unexport(String id) {
+		exported.remove(id);
+	}
+
+	/**
+	 * @param function called with the value of a promise, returns a value or a promise.
+	 */
+	public void registerFunction(String name, Callback function) {
+		functions.put(name, function);
+	}
+
+	public void unregisterFunction(String name) {
+		functions.remove(name);
+	}
+
+	/**
+	 * Sets the largest message accepted from the other side, before binding.
+	 */
+	public synchronized void setMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	public synchronized void bind(SocketAddress address) throws IOException {
+		if(loop != null) {
+			throw new IllegalStateException("already bound");
+		}
+		server = ServerSocketChannel.open();
+		server.bind(address);
+		loop = new SelectorLoop("promises-server", this);
+		loop.setMaxFrameSize(maxFrameSize);
+		loop.listen(server);
+		loop.start();
+		log.info("Promise server listening on " + server.getLocalAddress());
+	}
+
+	public synchronized SocketAddress getLocalAddress() throws IOException {
+		return server == null ? null : server.getLocalAddress();
+	}
+
+	public synchronized void close() {
+		if(loop != null) {
+			loop.close();
+			loop = null;
+			server = null;
+		}
+	}
+
+	@Override
+	public void accepted(FrameConnection connection) {
+		connection.setAttachment(new ConcurrentHashMap<Integer, Promise>());
+		connections.add(connection);
+	}
+
+	/**
+	 * Cancels whatever the connection's client was still waiting for,
+	 * as nobody is left to send the outcome to.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public void closed(FrameConnection connection) {
+		connections.remove(connection);
+		Map<Integer, Promise> handles = (Map<Integer, Promise>) connection.getAttachment();
+		connection.setAttachment(null);
+		if(handles != null) {
+			for(Promise p : handles.values()) {
+				if(!p.isDone()) {
+					p.cancel(true);
+				}
+			}
+			handles.clear();
+		}
+	}
+
+	/**
+	 * @return the number of promises held for clients across all connections.
+	 */
+	@SuppressWarnings("unchecked")
+	public int getHandleCount() {
+		int n = 0;
+		for(FrameConnection c : connections) {
+			Map<Integer, Promise> handles = (Map<Integer, Promise>) c.getAttachment();
+			if(handles != null) {
+				n += handles.size();
+			}
+		}
+		return n;
+	}
+
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void received(final FrameConnection connection, ByteBuffer frame) {
+		Map<Integer, Promise> handles = (Map<Integer, Promise>) connection.getAttachment();
+		if(handles == null) {
+			return;
+		}
+		byte op = frame.get();
+		final int handle = (int) Wire.readVarint(frame);
+
+		switch(op) {
+		case Wire.IMPORT: {
+			String id = Wire.readString(frame);
+			Object value = exported.get(id);
+			if(value == null && !exported.containsKey(id)) {
+				track(connection, handles, handle, promises.reject(new CallbackFailure("No promise exported as " + id)));
+			} else {
+				track(connection, handles, handle, detach(promises.ref(value)));
+			}
+			break;
+		}
+		case Wire.CALL: {
+			Promise source = handles.get((int) Wire.readVarint(frame));
+			String name = Wire.readString(frame);
+			if(source == null) {
+				source = promises.reject(new CallbackFailure("Unknown remote promise"));
+			}
+			track(connection, handles, handle, apply(source, name));
+			break;
+		}
+		case Wire.CALL_VALUE: {
+			boolean ok = frame.get() != 0;
+			Object value = Wire.readValue(frame);
+			String name = Wire.readString(frame);
+			track(connection, handles, handle, apply(ok ? promises.ref(value) : promises.reject(value), name));
+			break;
+		}
+		case Wire.CANCEL: {
+			Promise p = handles.remove(handle);
+			if(p != null) {
+				p.cancel(true);
+			}
+			break;
+		}
+		case Wire.RELEASE:
+			handles.remove(handle);
+			break;
+		default:
+			log.warn("Unknown message " + op);
+		}
+	}
+
+	/**
+	 * @return a promise following exported which can be cancelled without cancelling it,
+	 * as the exported promise is shared by every client.
+	 */
+	private Promise detach(Promise exported) {
+		return follow(promises.defer(), exported, new Canceller() {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Applies the function once source is resolved. Cancelling the result
+	 * cancels the promise the function returned if it has been called,
+	 * or stops it being called if not.
+	 */
+	private Promise apply(Promise source, final String name) {
+		final Deferred d = promises.defer();
+		final AtomicReference<Promise> running = new AtomicReference<Promise>();
+		final Promise applied = promises.when(source, new Callback() {
+			@Override
+			public Object callback(Object input) {
+				if(d.isDone()) {
+					return ExpectedFailure.CANCELLED;
+				}
+				Callback function = functions.get(name);
+				if(function == null) {
+					return new CallbackFailure("No function registered as " + name);
+				}
+				Object result = function.callback(input);
+				if(promises.isPromise(result)) {
+					running.set((Promise) result);
+				}
+				return result;
+			}
+		});
+		return follow(d, applied, new Canceller() {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				Promise p = running.get();
+				if(p != null) {
+					p.cancel(mayInterruptIfRunning);
+				}
+				applied.cancel(mayInterruptIfRunning);
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Settles d as source settles, unless d has been cancelled first.
+	 */
+	private Promise follow(final Deferred d, Promise source, Canceller canceller) {
+		d.setCanceller(canceller);
+		source.then(new Callback() {
+			@Override
+			public Object callback(Object input) {
+				synchronized (d) {
+					if(!d.isDone()) {
+						d.resolve(input);
+					}
+				}
+				return null;
+			}
+		}, new Callback() {
+			@Override
+			public Object callback(Object input) {
+				synchronized (d) {
+					if(!d.isDone()) {
+						d.reject(input);
+					}
+				}
+				return null;
+			}
+		});
+		return d.getPromise();
+	}
+
+	/**
+	 * Keeps the promise under its handle until the client releases or
+	 * cancels it, and sends its outcome back when it settles.
+	 */
+	private void track(final FrameConnection connection, Map<Integer, Promise> handles, final int handle, Promise p) {
+		handles.put(handle, p);
+		p.then(new Callback() {
+			@Override
+			public Object callback(Object input) {
+				result(connection, handle, true, input);
+				return null;
+			}
+		}, new Callback() {
+			@Override
+			public Object callback(Object input) {
+				result(connection, handle, false, input);
+				return null;
+			}
+		});
+	}
+
+	private void result(FrameConnection connection, int handle, boolean ok, Object value) {
+		SelectorLoop l;
+		synchronized (this) {
+			l = loop;
+		}
+		if(l == null || !connection.isOpen()) {
+			return;
+		}
+		Wire.Output out = new Wire.Output();
+		int start = Wire.startFrame(out, Wire.RESULT);
+		Wire.writeVarint(out, handle);
+		out.write(ok ? 1 : 0);
+		Wire.writeValue(out, value);
+		Wire.endFrame(out, start);
+		l.send(connection, out.toByteBuffer());
+	}
+}
@@ -1,7 +1,12 @@
 package uk.org.elsie.osgi.promises;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -13,7 +18,11 @@ public interface PromisesService {
 	Promise when(Object obj, Callback callback);
 	Promise whenEach(Object[] promises);
 	Promise whenEach(Collection<Object> promises);
+	Sequence sequence(Callback producer);
+	Sequence sequence(Object[] promises);
+	Sequence sequence(Collection<Object> promises);
 	Deferred defer();
+	PromiseScope openScope();
 	Promise reject(Object reason);
 	Promise ref(Object obj);
 	boolean isPromise(Object obj);
@@ -23,8 +32,17 @@ public interface PromisesService {
 	ScheduledExecutorService getScheduledExecutorService();
 	void setScheduledExecutorService(ScheduledExecutorService executorService);
 	void unsetScheduledExecutorService(ScheduledExecutorService executorService);
+	ForkJoinPool getForkJoinPool();
+	void setForkJoinPool(ForkJoinPool pool);
+	void unsetForkJoinPool(ForkJoinPool pool);
+	Future<Object> submit(Callable<Object> task);
+	Future<Object> submit(Callable<Object> task, int priority);
+	Future<Object> schedule(Callable<Object> task, long delay, TimeUnit units);
 	Promise delay(long time, TimeUnit units);
 	Promise delay(long time, TimeUnit units, Object input);
+	Promise retry(Callback operation, int maxAttempts, Backoff backoff);
+	Promise retry(Callback operation, int maxAttempts, Backoff backoff, Callback retryIf);
+	DeferredJournal openJournal(File directory) throws IOException;
 	FailureCollectorService getFailureCollectorService();
 	void setFailureCollectorService(FailureCollectorService failureCollector);
 	void unsetFailureCollectorService(FailureCollectorService failureCollector);
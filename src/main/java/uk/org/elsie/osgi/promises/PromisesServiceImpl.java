@@ -1,26 +1,65 @@
 package uk.org.elsie.osgi.promises;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import uk.org.elsie.osgi.promises.internal.Blocker;
+import uk.org.elsie.osgi.promises.internal.CallbackWatchdog;
 import uk.org.elsie.osgi.promises.internal.DeferredImpl;
+import uk.org.elsie.osgi.promises.internal.GeneratorSequence;
+import uk.org.elsie.osgi.promises.internal.MappedJournal;
+import uk.org.elsie.osgi.promises.internal.PriorityExecutor;
 import uk.org.elsie.osgi.promises.internal.Progress;
+import uk.org.elsie.osgi.promises.internal.PromiseScopeImpl;
+import uk.org.elsie.osgi.promises.internal.Retry;
+import uk.org.elsie.osgi.promises.internal.SettledPromise;
+import uk.org.elsie.osgi.promises.internal.UnobservedRejections;
 
 public class PromisesServiceImpl implements PromisesService {
 	
 	private static Log log = LogFactory.getLog(PromisesServiceImpl.class);
 
-	private ScheduledExecutorService executor;
+	private volatile ScheduledExecutorService executor;
+	private ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+	private AtomicInteger pendingCount = new AtomicInteger();
+	private int maxPending = 10000;
+	private volatile ForkJoinPool forkJoinPool;
+	private volatile PriorityExecutor priorityExecutor;
+	private volatile CallbackWatchdog watchdog;
+	private ConcurrentLinkedQueue<Blocker> helping = new ConcurrentLinkedQueue<Blocker>();
+	private ThreadLocal<ScheduledExecutorService> workerOf = new ThreadLocal<ScheduledExecutorService>();
+	private int starvationLimit = 8;
 	private boolean rejectImmediately = false;
 	private FailureCollectorService failureCollector;
+	private final UnobservedRejections unobservedRejections = new UnobservedRejections(this);
+	private final Promise resolvedNull = new SettledPromise(this, null, false);
+	private final Promise resolvedTrue = new SettledPromise(this, Boolean.TRUE, false);
+	private final Promise resolvedFalse = new SettledPromise(this, Boolean.FALSE, false);
+	private final Promise resolvedEmptyList = new SettledPromise(this, Collections.EMPTY_LIST, false);
+	private final Promise resolvedEmptyString = new SettledPromise(this, "", false);
 	
 	public PromisesServiceImpl() {
 		log.info("Creating promises service");
@@ -30,17 +69,9 @@ public class PromisesServiceImpl implements PromisesService {
 		try {
 			Object value;
 			value = async.callback(obj);
-			if(isPromise(value)) {
-				return value;
-			} else {
-				Deferred d = defer();
-				d.resolve(value);
-				return d.getPromise();
-			}
+			return ref(value);
 		} catch (Exception e) {
-			Deferred d = defer();
-			d.reject(e);
-			return d.getPromise();
+			return reject(ExpectedFailureException.unwrap(e));
 		}
 	}
 	
@@ -73,19 +104,20 @@ public class PromisesServiceImpl implements PromisesService {
 	
 	public Promise whenEach(final Object[] promises) {
 		final DeferredImpl d = defer();
-		final int[] fulfilled = new int[] { 0 };
+		final AtomicInteger fulfilled = new AtomicInteger();
+		final AtomicBoolean rejected = new AtomicBoolean();
 		final Object[] results = new Object[promises.length];
-		final int[] i = new int[1];
 
-		for(i[0] = 0; i[0] < promises.length; i[0]++) {
-			when(promises[i[0]], new Callback() {
+		for(int i = 0; i < promises.length; i++) {
+			final int index = i;
+			when(promises[i], new Callback() {
 				@Override
 				public Object callback(Object input) {
-					results[i[0]] = input;
-					fulfilled[0]++;
+					results[index] = input;
+					int n = fulfilled.incrementAndGet();
 					if(d.getProgressCallback() != null)
-						d.getProgressCallback().callback(new Progress(fulfilled[0], promises.length));
-					if(fulfilled[0] == promises.length) {
+						d.getProgressCallback().callback(new Progress(n, promises.length));
+					if(n == promises.length) {
 						d.resolve(results);
 					}
 					return null;
@@ -93,7 +125,9 @@ public class PromisesServiceImpl implements PromisesService {
 			}, new Callback() {
 				@Override
 				public Object callback(Object input) {
-					d.reject(input);
+					if(rejected.compareAndSet(false, true)) {
+						d.reject(input);
+					}
 					return null;
 				}
 				
@@ -115,59 +149,97 @@ public class PromisesServiceImpl implements PromisesService {
 		}
 	}
 	
+	/**
+	 * Waits for obj to settle and returns its result.
+	 * When called on a thread which runs continuations the wait could
+	 * starve the executor of the threads it needs to settle obj, so
+	 * instead a fork-join worker blocks through the pool's managed
+	 * blocking, which adds a spare worker while it waits, and a thread
+	 * of the scheduled executor runs queued tasks itself until obj settles.
+	 * A thread of the scheduled executor is only known as one once it has
+	 * run a task from this service, so tasks other bundles submit to a
+	 * shared executor wait as on any other thread.
+	 */
 	public Object waitFor(Object obj, long timeout, TimeUnit units) throws InterruptedException,
 			ExecutionException, TimeoutException {
-		if(isPromise(obj)) {
-			final Object monitor = new Object();
-			final boolean[] finished = new boolean[] { false };
-			final boolean[] error = new boolean[] { false };
-			final Object[] result = new Object[] { null };
-			
-			((Promise) obj).then(new Callback() {
-				@Override
-				public Object callback(Object value) {
-					synchronized (monitor) {
-						finished[0] = true;
-						result[0] = value;
-						monitor.notify();
-					}
-					return null;
-				}	
-			}, new Callback() {
-				@Override
-				public Object callback(Object value) {
-					synchronized (monitor) {
-						finished[0] = error[0] = true;
-						result[0] = value;
-						monitor.notify();
-					}
-					return null;
-				}	
-			}, null);
+		if(obj instanceof SettledPromise) {
+			return ((SettledPromise) obj).getValue();
+		} else if(isPromise(obj)) {
+			Blocker blocker = new Blocker(timeout, units);
+			((Promise) obj).then(blocker.getCallback(), blocker.getCallback(), null);
 			
-			if(timeout == 0) {
-				synchronized (monitor) {
-					while(!finished[0]) {
-						monitor.wait();
-					}
-				}
+			ForkJoinPool pool = forkJoinPool;
+			Thread t = Thread.currentThread();
+			ScheduledExecutorService executor = getScheduledExecutorService();
+			if(pool != null && t instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) t).getPool() == pool) {
+				ForkJoinPool.managedBlock(blocker);
+			} else if(executor instanceof ThreadPoolExecutor && workerOf.get() == executor) {
+				help((ThreadPoolExecutor) executor, blocker);
 			} else {
-				long millis = TimeUnit.MILLISECONDS.convert(timeout, units);
+				blocker.block();
+			}
 
-				synchronized (monitor) {
-					if(!finished[0]) {
-						monitor.wait(millis);
-					}
+			if(!blocker.isFinished()) {
+				throw new TimeoutException();
+			}
+			return blocker.getResult();
+		} else {
+			return obj;
+		}
+	}
+	
+	/**
+	 * Runs tasks from the executor's queue on the current thread
+	 * until the blocker is finished or times out. With nothing to run
+	 * the thread sleeps until the blocker finishes, a task is
+	 * dispatched, or the next scheduled task falls due.
+	 */
+	protected void help(ThreadPoolExecutor executor, Blocker blocker) throws InterruptedException {
+		BlockingQueue<Runnable> queue = executor.getQueue();
+		helping.add(blocker);
+		try {
+			while(!blocker.isFinished() && blocker.remaining() > 0) {
+				if(Thread.interrupted()) {
+					throw new InterruptedException();
 				}
-
-				if(!finished[0]) {
-					throw new TimeoutException();
+				Runnable task = queue.poll();
+				if(task != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						log.error("Error running task while waiting", e);
+					}
+				} else {
+					Runnable next = queue.peek();
+					blocker.await(next instanceof Delayed ? ((Delayed) next).getDelay(TimeUnit.NANOSECONDS) : Long.MAX_VALUE);
 				}
 			}
+		} finally {
+			helping.remove(blocker);
+		}
+	}
 
-			return result[0];
-		} else {
-			return obj;
+	/**
+	 * Notes that the thread running a task belongs to the executor it was
+	 * submitted to, so that waitFor on that thread helps out rather than
+	 * blocks. The executor may be shared with other bundles, so it is
+	 * left as it is and its threads are marked as they run our tasks.
+	 */
+	private class Marking implements Callable<Object> {
+		private ScheduledExecutorService executor;
+		private Callable<Object> task;
+
+		public Marking(ScheduledExecutorService executor, Callable<Object> task) {
+			this.executor = executor;
+			this.task = task;
+		}
+
+		@Override
+		public Object call() throws Exception {
+			if(workerOf.get() != executor) {
+				workerOf.set(executor);
+			}
+			return task.call();
 		}
 	}
 
@@ -175,23 +247,42 @@ public class PromisesServiceImpl implements PromisesService {
 		return createDeferred(null);
 	}
 	
-	public Deferred defer(Canceller canceller) {
+	public DeferredImpl defer(Canceller canceller) {
 		return createDeferred(canceller);
 	}
 
+	public PromiseScope openScope() {
+		return new PromiseScopeImpl(this);
+	}
+
 	public Promise reject(Object reason) {
-		Deferred d = defer();
-		d.reject(reason);
-		return d.getPromise();
+		if(rejectImmediately) {
+			Deferred d = defer();
+			d.reject(reason);
+			return d.getPromise();
+		}
+		return new SettledPromise(this, reason, true);
 	}
 
+	/**
+	 * Wraps a value which is already known in an immutable settled promise.
+	 * Common values share a single promise.
+	 */
 	public Promise ref(Object obj) {
 		if(isPromise(obj)) {
 			return (Promise)obj;
+		} else if(obj == null) {
+			return resolvedNull;
+		} else if(Boolean.TRUE.equals(obj)) {
+			return resolvedTrue;
+		} else if(Boolean.FALSE.equals(obj)) {
+			return resolvedFalse;
+		} else if(obj == Collections.EMPTY_LIST) {
+			return resolvedEmptyList;
+		} else if("".equals(obj)) {
+			return resolvedEmptyString;
 		} else {
-			Deferred d = defer();
-			d.resolve(obj);
-			return d.getPromise();
+			return new SettledPromise(this, obj, false);
 		}
 	}
 
@@ -211,9 +302,14 @@ public class PromisesServiceImpl implements PromisesService {
 		return executor;
 	}
 	
+	/**
+	 * The executor may be replaced at any time. Tasks submitted while
+	 * none is bound are held and passed on to the next one.
+	 */
 	public synchronized void setScheduledExecutorService(ScheduledExecutorService executor) {
 		log.info("Setting scheduled executor");
 		this.executor = executor;
+		drainPending();
 	}
 	
 	public synchronized void unsetScheduledExecutorService(ScheduledExecutorService executor) {
@@ -223,10 +319,247 @@ public class PromisesServiceImpl implements PromisesService {
 		}
 	}
 	
+	public ForkJoinPool getForkJoinPool() {
+		return forkJoinPool;
+	}
+	
+	/**
+	 * Runs continuations on pool instead of the scheduled executor.
+	 * Timers are still scheduled on the scheduled executor.
+	 * The pool should be in async (FIFO) mode, as created by
+	 * {@link #createAsyncForkJoinPool(int)}.
+	 */
+	public synchronized void setForkJoinPool(ForkJoinPool pool) {
+		log.info("Setting fork-join pool");
+		if(!pool.getAsyncMode()) {
+			log.warn("Fork-join pool is not in async mode; continuations will run LIFO");
+		}
+		this.forkJoinPool = pool;
+	}
+	
+	public synchronized void unsetForkJoinPool(ForkJoinPool pool) {
+		if(this.forkJoinPool == pool) {
+			log.info("Unsetting fork-join pool");
+			this.forkJoinPool = null;
+		}
+	}
+	
+	public static ForkJoinPool createAsyncForkJoinPool(int parallelism) {
+		return new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+	}
+	
+	public Future<Object> submit(Callable<Object> task) {
+		return submit(task, Priority.NORMAL);
+	}
+	
+	/**
+	 * Hands a task straight to the executor. With a fork-join pool bound,
+	 * tasks submitted from one of its workers are pushed onto that
+	 * worker's own deque, and only those from other threads go through
+	 * the pool's shared submission queue.
+	 */
+	public Future<Object> dispatch(Callable<Object> task) {
+		ForkJoinPool pool = forkJoinPool;
+		if(pool != null) {
+			Thread t = Thread.currentThread();
+			if(t instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) t).getPool() == pool) {
+				return ForkJoinTask.adapt(task).fork();
+			}
+			return pool.submit(task);
+		}
+		ScheduledExecutorService ex = executor;
+		if(ex != null) {
+			try {
+				Future<Object> future = ex.submit(new Marking(ex, task));
+				if(!helping.isEmpty()) {
+					for(Blocker b : helping) {
+						b.wake();
+					}
+				}
+				return future;
+			} catch (RejectedExecutionException e) {
+				if(executor == ex) {
+					throw e;
+				}
+				// unbound while submitting
+			}
+		}
+		FutureTask<Object> future = new FutureTask<Object>(task);
+		buffer(future);
+		return future;
+	}
+	
+	/**
+	 * Runs task on the scheduled executor after the delay. If no executor
+	 * is bound, the timer is held until one is, and then scheduled for
+	 * whatever remains of the delay.
+	 */
+	public Future<Object> schedule(Callable<Object> task, long delay, TimeUnit units) {
+		ScheduledExecutorService ex = executor;
+		if(ex != null) {
+			try {
+				return ex.schedule(new Marking(ex, task), delay, units);
+			} catch (RejectedExecutionException e) {
+				if(executor == ex) {
+					throw e;
+				}
+			}
+		}
+		final FutureTask<Object> future = new FutureTask<Object>(task);
+		final long deadline = System.nanoTime() + units.toNanos(delay);
+		buffer(new Runnable() {
+			@Override
+			public void run() {
+				if(!future.isDone()) {
+					schedule(Executors.callable(future, (Object) null), deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+				}
+			}
+		});
+		return future;
+	}
+	
+	/**
+	 * Holds a task while no executor is bound.
+	 * @throws RejectedExecutionException if the buffer is full.
+	 */
+	private void buffer(Runnable task) {
+		if(pendingCount.incrementAndGet() > maxPending) {
+			pendingCount.decrementAndGet();
+			throw new RejectedExecutionException("no executor bound and " + maxPending + " tasks already waiting");
+		}
+		pending.add(task);
+		// an executor may have been bound since we looked
+		if(executor != null) {
+			drainPending();
+		}
+	}
+	
+	private void drainPending() {
+		Runnable task;
+		while((task = pending.poll()) != null) {
+			pendingCount.decrementAndGet();
+			ScheduledExecutorService ex = executor;
+			try {
+				if(ex != null) {
+					ex.submit(new Marking(ex, Executors.callable(task)));
+					continue;
+				}
+			} catch (RejectedExecutionException e) {
+				log.warn("Executor rejected a held task; keeping it for the next executor");
+			}
+			// put it back for the next executor to be bound
+			pendingCount.incrementAndGet();
+			pending.add(task);
+			return;
+		}
+	}
+	
+	public int getMaxPending() {
+		return maxPending;
+	}
+	
+	/**
+	 * Sets how many tasks may be held while no executor is bound,
+	 * after which further tasks are rejected.
+	 */
+	public void setMaxPending(int maxPending) {
+		this.maxPending = maxPending;
+	}
+	
+	/**
+	 * Runs a continuation at the given priority. Unless priority
+	 * scheduling is enabled, all priorities are treated alike.
+	 */
+	public Future<Object> submit(Callable<Object> task, int priority) {
+		CallbackWatchdog w = watchdog;
+		if(w != null) {
+			task = w.wrap(task);
+		}
+		PriorityExecutor pe = priorityExecutor;
+		try {
+			if(pe != null) {
+				return pe.submit(task, priority);
+			}
+			return dispatch(task);
+		} catch (RejectedExecutionException e) {
+			if(w != null) {
+				w.discard(task);
+			}
+			throw e;
+		}
+	}
+	
+	public CallbackWatchdog getWatchdog() {
+		return watchdog;
+	}
+	
+	/**
+	 * Starts watching for callbacks which run for longer than the
+	 * threshold and tasks which wait longer than it to run.
+	 * @param threshold the threshold, or 0 to stop watching.
+	 */
+	public synchronized void setWatchdogThreshold(long threshold, TimeUnit units) {
+		if(watchdog != null) {
+			watchdog.stop();
+			watchdog = null;
+		}
+		if(threshold > 0) {
+			log.info("Starting callback watchdog with threshold " + threshold + " " + units);
+			watchdog = new CallbackWatchdog(threshold, units);
+			watchdog.start();
+		}
+	}
+	
+	/**
+	 * Stops the watchdog thread, if one was started.
+	 */
+	public synchronized void deactivate() {
+		if(watchdog != null) {
+			log.info("Stopping callback watchdog");
+			watchdog.stop();
+			watchdog = null;
+		}
+	}
+	
+	public boolean getPriorityScheduling() {
+		return priorityExecutor != null;
+	}
+	
+	/**
+	 * When enabled, continuations are queued in a lane per {@link Priority}
+	 * and the executor always takes from the highest priority lane with
+	 * work waiting, apart from every starvationLimit-th turn of a lane
+	 * which has been kept waiting.
+	 */
+	public synchronized void setPriorityScheduling(boolean enabled) {
+		if(enabled && priorityExecutor == null) {
+			log.info("Enabling priority scheduling");
+			priorityExecutor = new PriorityExecutor(this, Priority.LANES, starvationLimit);
+		} else if(!enabled && priorityExecutor != null) {
+			log.info("Disabling priority scheduling");
+			priorityExecutor = null;
+		}
+	}
+	
+	public int getStarvationLimit() {
+		return starvationLimit;
+	}
+	
+	/**
+	 * Takes effect the next time priority scheduling is enabled.
+	 */
+	public void setStarvationLimit(int starvationLimit) {
+		this.starvationLimit = starvationLimit;
+	}
+	
 	public boolean getRejectImmediately() {
 		return rejectImmediately;
 	}
 	
+	public UnobservedRejections getUnobservedRejections() {
+		return unobservedRejections;
+	}
+
 	public synchronized FailureCollectorService getFailureCollectorService() {
 		return failureCollector;
 	}
@@ -266,8 +599,15 @@ public class PromisesServiceImpl implements PromisesService {
 	}
 
 	public Promise delay(long delay, TimeUnit units, final Object input) {
-		final Deferred d = defer();
-		final ScheduledFuture<Object> future = executor.schedule(new Callable<Object>() {
+		return delay(defer(), delay, units, input);
+	}
+
+	/**
+	 * Schedules d to be resolved with input after the delay,
+	 * and sets its canceller to cancel the timer.
+	 */
+	public Promise delay(final Deferred d, long delay, TimeUnit units, final Object input) {
+		final Future<Object> future = schedule(new Callable<Object>() {
 			@Override
 			public Object call() throws Exception {
 				log.debug("delayed task called");
@@ -284,4 +624,73 @@ public class PromisesServiceImpl implements PromisesService {
 		
 		return d.getPromise();
 	}
+	
+	public Promise retry(Callback operation, int maxAttempts, Backoff backoff) {
+		return retry(operation, maxAttempts, backoff, null);
+	}
+
+	/**
+	 * Calls operation with the attempt number, starting at 1, until the
+	 * promise it returns is resolved. Failures accepted by retryIf are
+	 * retried after a jittered backoff until maxAttempts is reached, after
+	 * which the last failure is passed on. Progress callbacks receive a
+	 * Progress for each retry, and cancelling the returned promise
+	 * cancels the pending wait or the attempt in flight.
+	 * @param retryIf returns Boolean.TRUE for failures worth retrying, or null to retry all.
+	 */
+	public Promise retry(Callback operation, int maxAttempts, Backoff backoff, Callback retryIf) {
+		return new Retry(this, defer(), operation, maxAttempts, backoff, retryIf).start();
+	}
+
+	/**
+	 * Creates a sequence from a producer, which is called with the index
+	 * of each value as it is asked for and returns the value, a promise
+	 * of it, or Sequence.END.
+	 */
+	public Sequence sequence(Callback producer) {
+		return new GeneratorSequence(this, producer);
+	}
+
+	/**
+	 * Creates a sequence of the values of promises in the order they
+	 * settle. Failures reject the matching pull, and the rest carry on.
+	 */
+	public Sequence sequence(final Object[] promises) {
+		// the indexes are pulled, not the promises, so that the
+		// sequence of indexes doesn't wait for each promise in turn
+		return sequence(new Callback() {
+			@Override
+			public Object callback(Object index) {
+				return (Integer) index < promises.length ? index : Sequence.END;
+			}
+		}).flatMapConcurrent(new Callback() {
+			@Override
+			public Object callback(Object index) {
+				return promises[(Integer) index];
+			}
+		}, Math.max(1, promises.length));
+	}
+
+	public Sequence sequence(Collection<Object> promises) {
+		return sequence(promises.toArray());
+	}
+
+	/**
+	 * Opens the journal in directory, with 16MB segments and a 2ms commit window.
+	 */
+	public DeferredJournal openJournal(File directory) throws IOException {
+		return openJournal(directory, 16 * 1024 * 1024, 2, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Opens a journal of durable deferreds, recovering any already in it.
+	 * Only deferreds created from the journal are written to it.
+	 * @param segmentSize the size of each segment file in bytes.
+	 * @param commitDelay how long to gather records before forcing them to disk.
+	 */
+	public DeferredJournal openJournal(File directory, int segmentSize, long commitDelay, TimeUnit units) throws IOException {
+		MappedJournal journal = new MappedJournal(this, rejectImmediately, directory, segmentSize, commitDelay, units);
+		journal.open();
+		return journal;
+	}
 }
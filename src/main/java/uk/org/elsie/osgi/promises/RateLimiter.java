@@ -0,0 +1,11 @@
+package uk.org.elsie.osgi.promises;
+
+/**
+ * A token bucket: permits are added at a fixed rate up to a maximum
+ * burst, and each acquire takes one.
+ */
+public interface RateLimiter extends Throttle {
+	double getPermitsPerSecond();
+
+	int getBurst();
+}
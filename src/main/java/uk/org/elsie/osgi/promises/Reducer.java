@@ -0,0 +1,12 @@
+package uk.org.elsie.osgi.promises;
+
+/**
+ * Folds the values of a {@link Sequence} into a single result.
+ * @author chris
+ */
+public interface Reducer {
+	/**
+	 * @return the new accumulated value, or a promise of it.
+	 */
+	public Object reduce(Object accumulator, Object value);
+}
@@ -0,0 +1,18 @@
+package uk.org.elsie.osgi.promises;
+
+/**
+ * A promise for a value held by another process.
+ * Calls made on it are sent straight away without waiting for the
+ * value, so a chain of dependent calls costs a single round trip.
+ * Cancelling it cancels the promise in the other process, but not the
+ * exported promise it was imported from.
+ * @author chris
+ */
+public interface RemotePromise extends Promise {
+	/**
+	 * Calls a function registered with the remote {@link PromiseServer}
+	 * on this promise's value once it resolves, in the remote process.
+	 * @return a promise for the function's result.
+	 */
+	public RemotePromise call(String function);
+}
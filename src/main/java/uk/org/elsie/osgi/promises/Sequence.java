@@ -0,0 +1,66 @@
+package uk.org.elsie.osgi.promises;
+
+/**
+ * An asynchronous sequence of values, pulled one at a time.
+ * Nothing is produced until next is called, and the operators only
+ * pull as much from upstream as they need, so a long result can be
+ * worked through with memory bounded by the buffer sizes rather than
+ * by the length of the result.
+ * @author chris
+ */
+public interface Sequence {
+	/**
+	 * The value next resolves with once the sequence is exhausted.
+	 */
+	public static final Object END = new Object() {
+		public String toString() {
+			return "END";
+		}
+	};
+
+	/**
+	 * Requests the next value. Calls made while an earlier one is still
+	 * pending are queued behind it, so values come back in order.
+	 * @return a promise of the next value, or of END when there are no more.
+	 */
+	Promise next();
+
+	/**
+	 * @param mapper called with each value, returns the new value or a promise of it.
+	 */
+	Sequence map(Callback mapper);
+
+	/**
+	 * @param predicate called with each value, returns Boolean.TRUE, or a promise of it, to keep the value.
+	 */
+	Sequence filter(Callback predicate);
+
+	/**
+	 * Pulls up to size values ahead of demand, so upstream keeps
+	 * working while the consumer handles the current value.
+	 */
+	Sequence buffer(int size);
+
+	/**
+	 * Maps each value to a sequence and merges them, with up to
+	 * concurrency of them being pulled at once. Values are passed on in
+	 * the order they arrive, not the order of the upstream values.
+	 * @param mapper called with each value, returns a Sequence, or a single value or promise.
+	 */
+	Sequence flatMapConcurrent(Callback mapper, int concurrency);
+
+	/**
+	 * @return a promise of the result of folding every value into initial.
+	 */
+	Promise reduce(Object initial, Reducer reducer);
+
+	/**
+	 * @return a promise of a List of all the remaining values.
+	 */
+	Promise collect();
+
+	/**
+	 * Stops pulling from upstream. Later calls to next resolve with END.
+	 */
+	void close();
+}
@@ -0,0 +1,29 @@
+package uk.org.elsie.osgi.promises;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out permission to start work as promises rather than by
+ * blocking the calling thread.
+ */
+public interface Throttle {
+	/**
+	 * Queues for a permit.
+	 * @return a promise resolved with this throttle once a permit is
+	 * available. Cancelling it gives up the place in the queue.
+	 */
+	Promise acquire();
+
+	/**
+	 * Queues for a permit, giving up after the timeout.
+	 * @return a promise resolved with this throttle once a permit is
+	 * available, or rejected if the timeout expires first.
+	 */
+	Promise acquire(long timeout, TimeUnit units);
+
+	/**
+	 * Acquires a permit, then calls operation and passes on the promise
+	 * or value it returns. Any permit is given back once that settles.
+	 */
+	Promise execute(Callback operation);
+}
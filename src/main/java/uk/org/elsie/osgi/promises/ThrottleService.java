@@ -0,0 +1,12 @@
+package uk.org.elsie.osgi.promises;
+
+import java.util.concurrent.TimeUnit;
+
+public interface ThrottleService {
+	RateLimiter createRateLimiter(double permitsPerSecond, int burst);
+	Bulkhead createBulkhead(int maxConcurrent);
+	CircuitBreaker createCircuitBreaker(int windowSize, double failureRateThreshold, long openDuration, TimeUnit units);
+	PromisesService getPromisesService();
+	void setPromisesService(PromisesService promises);
+	void unsetPromisesService(PromisesService promises);
+}
@@ -0,0 +1,54 @@
+package uk.org.elsie.osgi.promises;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.org.elsie.osgi.promises.internal.SemaphoreBulkhead;
+import uk.org.elsie.osgi.promises.internal.SlidingWindowCircuitBreaker;
+import uk.org.elsie.osgi.promises.internal.TokenBucketRateLimiter;
+
+/**
+ * Creates rate limiters, bulkheads and circuit breakers which queue work as promises
+ * and schedule their timers on the promises service's executor.
+ * @author chris
+ */
+public class ThrottleServiceImpl implements ThrottleService {
+
+	private static Log log = LogFactory.getLog(ThrottleServiceImpl.class);
+
+	private PromisesService promises;
+
+	public ThrottleServiceImpl() {
+		log.info("Creating throttle service");
+	}
+
+	public RateLimiter createRateLimiter(double permitsPerSecond, int burst) {
+		return new TokenBucketRateLimiter(getPromisesService(), permitsPerSecond, burst);
+	}
+
+	public Bulkhead createBulkhead(int maxConcurrent) {
+		return new SemaphoreBulkhead(getPromisesService(), maxConcurrent);
+	}
+
+	public CircuitBreaker createCircuitBreaker(int windowSize, double failureRateThreshold, long openDuration, TimeUnit units) {
+		return new SlidingWindowCircuitBreaker(getPromisesService(), windowSize, failureRateThreshold, openDuration, units);
+	}
+
+	public synchronized PromisesService getPromisesService() {
+		return promises;
+	}
+
+	public synchronized void setPromisesService(PromisesService promises) {
+		log.info("Set promises-service");
+		this.promises = promises;
+	}
+
+	public synchronized void unsetPromisesService(PromisesService promises) {
+		if(this.promises == promises) {
+			log.info("Unset promises-service");
+			this.promises = null;
+		}
+	}
+}
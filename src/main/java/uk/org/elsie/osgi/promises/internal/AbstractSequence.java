@@ -0,0 +1,213 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.org.elsie.osgi.promises.Callback;
+import uk.org.elsie.osgi.promises.Deferred;
+import uk.org.elsie.osgi.promises.Promise;
+import uk.org.elsie.osgi.promises.PromisesService;
+import uk.org.elsie.osgi.promises.Reducer;
+import uk.org.elsie.osgi.promises.Sequence;
+
+/**
+ * Base for sequences. Queues calls to next behind the previous one so
+ * subclasses only ever have one pull outstanding, and provides the operators.
+ * @author chris
+ */
+public abstract class AbstractSequence implements Sequence {
+	protected PromisesService promises;
+	private Promise tail = null;
+	private volatile boolean closed = false;
+
+	private Callback pullNext = new Callback() {
+		@Override
+		public Object callback(Object input) {
+			return closed ? END : pull();
+		}
+	};
+
+	public AbstractSequence(PromisesService promises) {
+		this.promises = promises;
+	}
+
+	/**
+	 * Produces the next value. Only called once the previous pull has settled.
+	 * @return a promise of the next value, or of END.
+	 */
+	protected abstract Promise pull();
+
+	/**
+	 * Called once when the sequence is closed.
+	 */
+	protected void closed() {
+	}
+
+	@Override
+	public synchronized Promise next() {
+		if(closed) {
+			return promises.ref(END);
+		}
+		Promise previous = tail;
+		if(previous == null || previous.isDone()) {
+			tail = pull();
+		} else {
+			tail = promises.when(previous, pullNext, pullNext);
+		}
+		return tail;
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			if(closed) {
+				return;
+			}
+			closed = true;
+		}
+		closed();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public Sequence map(final Callback mapper) {
+		final Sequence upstream = this;
+		return new AbstractSequence(promises) {
+			@Override
+			protected Promise pull() {
+				return promises.when(upstream.next(), new Callback() {
+					@Override
+					public Object callback(Object input) {
+						return input == END ? END : mapper.callback(input);
+					}
+				});
+			}
+
+			@Override
+			protected void closed() {
+				upstream.close();
+			}
+		};
+	}
+
+	@Override
+	public Sequence filter(final Callback predicate) {
+		final Sequence upstream = this;
+		return new AbstractSequence(promises) {
+			/**
+			 * Pulls from upstream until a value is kept, starting each try
+			 * afresh rather than chaining it onto the last, so a long run
+			 * of rejected values doesn't build up a chain of promises.
+			 */
+			@Override
+			protected Promise pull() {
+				final Deferred d = promises.defer();
+				final Callback failed = new Callback() {
+					@Override
+					public Object callback(Object input) {
+						d.reject(input);
+						return null;
+					}
+				};
+				new Callback() {
+					private Callback step = this;
+
+					@Override
+					public Object callback(Object ignored) {
+						promises.when(upstream.next(), new Callback() {
+							@Override
+							public Object callback(final Object input) {
+								if(input == END) {
+									d.resolve(END);
+									return null;
+								}
+								return promises.when(predicate.callback(input), new Callback() {
+									@Override
+									public Object callback(Object keep) {
+										if(Boolean.TRUE.equals(keep)) {
+											d.resolve(input);
+										} else {
+											step.callback(null);
+										}
+										return null;
+									}
+								}, failed);
+							}
+						}, failed).then(null, failed);
+						return null;
+					}
+				}.callback(null);
+				return d.getPromise();
+			}
+
+			@Override
+			protected void closed() {
+				upstream.close();
+			}
+		};
+	}
+
+	@Override
+	public Sequence buffer(int size) {
+		return new BufferedSequence(promises, this, size);
+	}
+
+	@Override
+	public Sequence flatMapConcurrent(Callback mapper, int concurrency) {
+		return new MergedSequence(promises, this, mapper, concurrency);
+	}
+
+	@Override
+	public Promise reduce(final Object initial, final Reducer reducer) {
+		final Deferred d = promises.defer();
+		final Callback failed = new Callback() {
+			@Override
+			public Object callback(Object input) {
+				d.reject(input);
+				return null;
+			}
+		};
+		new Callback() {
+			private Object accumulator = initial;
+			private Callback step = this;
+
+			@Override
+			public Object callback(Object input) {
+				promises.when(next(), new Callback() {
+					@Override
+					public Object callback(Object value) {
+						if(value == END) {
+							d.resolve(accumulator);
+							return null;
+						}
+						return promises.when(reducer.reduce(accumulator, value), new Callback() {
+							@Override
+							public Object callback(Object result) {
+								accumulator = result;
+								step.callback(null);
+								return null;
+							}
+						}, failed);
+					}
+				}, failed).then(null, failed);
+				return null;
+			}
+		}.callback(null);
+		return d.getPromise();
+	}
+
+	@Override
+	public Promise collect() {
+		return reduce(new ArrayList<Object>(), new Reducer() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public Object reduce(Object accumulator, Object value) {
+				((List<Object>) accumulator).add(value);
+				return accumulator;
+			}
+		});
+	}
+}
@@ -0,0 +1,110 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import uk.org.elsie.osgi.promises.Callback;
+
+/**
+ * Waits for a promise to settle. Can be handed to
+ * {@link ForkJoinPool#managedBlock(ForkJoinPool.ManagedBlocker)} so the
+ * pool compensates for the blocked worker.
+ * @author chris
+ */
+public class Blocker implements ForkJoinPool.ManagedBlocker {
+	private boolean finished = false;
+	private boolean woken = false;
+	private Object result = null;
+	private boolean timed;
+	private long deadline;
+
+	private Callback callback = new Callback() {
+		@Override
+		public Object callback(Object value) {
+			finish(value);
+			return null;
+		}
+	};
+
+	/**
+	 * @param timeout how long to block for, or 0 to block until finished.
+	 */
+	public Blocker(long timeout, TimeUnit units) {
+		this.timed = timeout != 0;
+		this.deadline = System.nanoTime() + units.toNanos(timeout);
+	}
+
+	/**
+	 * @return a callback to pass as both callback and errback.
+	 */
+	public Callback getCallback() {
+		return callback;
+	}
+
+	public synchronized boolean isFinished() {
+		return finished;
+	}
+
+	public synchronized Object getResult() {
+		return result;
+	}
+
+	/**
+	 * @return the nanoseconds left before the deadline, or Long.MAX_VALUE if there is none.
+	 */
+	public long remaining() {
+		return timed ? deadline - System.nanoTime() : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Waits until finished, woken, the deadline passes or maxNanos elapse.
+	 */
+	public synchronized void await(long maxNanos) throws InterruptedException {
+		while(!finished && !woken) {
+			long nanos = Math.min(maxNanos, remaining());
+			if(nanos <= 0) {
+				break;
+			}
+			long start = System.nanoTime();
+			TimeUnit.NANOSECONDS.timedWait(this, nanos);
+			maxNanos -= System.nanoTime() - start;
+		}
+		woken = false;
+	}
+
+	/**
+	 * Ends the current or next {@link #await(long)} early, as there is
+	 * new work for the waiting thread to do.
+	 */
+	public synchronized void wake() {
+		woken = true;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized boolean block() throws InterruptedException {
+		while(!finished) {
+			if(!timed) {
+				wait();
+			} else {
+				long nanos = remaining();
+				if(nanos <= 0) {
+					break;
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, nanos);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isReleasable() {
+		return finished || remaining() <= 0;
+	}
+
+	private synchronized void finish(Object value) {
+		finished = true;
+		result = value;
+		notifyAll();
+	}
+}
@@ -0,0 +1,70 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Pool of same-sized direct buffers. Direct buffers are slow to allocate
+ * and only freed by the garbage collector, so reusing them keeps channel
+ * reads from copying through a temporary heap buffer without paying for
+ * a fresh allocation on every read.
+ * @author chris
+ */
+public class BufferPool {
+	private int bufferSize;
+	private int maxPooled;
+	private ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	// buffers compare by content, so the pooled ones are also kept by identity
+	private Set<ByteBuffer> pooled = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+
+	public BufferPool(int bufferSize, int maxPooled) {
+		if(bufferSize < 1) {
+			throw new IllegalArgumentException("bufferSize must be at least 1");
+		}
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @return a cleared buffer, from the pool if there is one.
+	 */
+	public ByteBuffer acquire() {
+		synchronized (this) {
+			ByteBuffer b = free.poll();
+			if(b != null) {
+				pooled.remove(b);
+				return b;
+			}
+		}
+		return ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers which did not come from
+	 * the pool, any beyond the pool's size, and any already back in the
+	 * pool are dropped, so releasing a buffer twice does no harm.
+	 */
+	public void release(ByteBuffer b) {
+		if(b == null || !b.isDirect() || b.capacity() != bufferSize) {
+			return;
+		}
+		synchronized (this) {
+			if(free.size() >= maxPooled || !pooled.add(b)) {
+				return;
+			}
+			b.clear();
+			free.add(b);
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public synchronized int getPooledCount() {
+		return free.size();
+	}
+}
@@ -0,0 +1,63 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.util.LinkedList;
+
+import uk.org.elsie.osgi.promises.Callback;
+import uk.org.elsie.osgi.promises.Promise;
+import uk.org.elsie.osgi.promises.PromisesService;
+import uk.org.elsie.osgi.promises.Sequence;
+
+/**
+ * Keeps up to size pulls outstanding on upstream, so values are being
+ * fetched before they are asked for. Stops asking once upstream ends.
+ * @author chris
+ */
+public class BufferedSequence extends AbstractSequence {
+	private Sequence upstream;
+	private int size;
+	private LinkedList<Promise> ahead = new LinkedList<Promise>();
+	private volatile boolean ended = false;
+
+	private Callback checkEnd = new Callback() {
+		@Override
+		public Object callback(Object input) {
+			if(input == END) {
+				ended = true;
+			}
+			return input;
+		}
+	};
+
+	public BufferedSequence(PromisesService promises, Sequence upstream, int size) {
+		super(promises);
+		if(size < 1) {
+			throw new IllegalArgumentException("size must be at least 1");
+		}
+		this.upstream = upstream;
+		this.size = size;
+	}
+
+	@Override
+	protected synchronized Promise pull() {
+		Promise p = ahead.poll();
+		if(p == null) {
+			p = request();
+		}
+		while(!ended && ahead.size() < size) {
+			ahead.add(request());
+		}
+		return p;
+	}
+
+	private Promise request() {
+		return ended ? promises.ref(END) : promises.when(upstream.next(), checkEnd);
+	}
+
+	@Override
+	protected void closed() {
+		synchronized (this) {
+			ahead.clear();
+		}
+		upstream.close();
+	}
+}
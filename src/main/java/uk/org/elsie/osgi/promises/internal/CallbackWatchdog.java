@@ -0,0 +1,224 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Watches continuations for callbacks which run too long and for tasks
+ * left waiting in the executor queue.
+ * Each worker thread gets a slot recording which callback it is running
+ * and since when, so the bookkeeping per task is a volatile write and
+ * an add and remove on a concurrent set. A sampler checks the slots and logs the callback class and
+ * stack of any thread which has been running one callback for longer
+ * than the threshold, and records the queue depth and the age of the
+ * oldest queued task. The sampler has its own daemon thread, since the
+ * executor it watches may be the one that is stuck.
+ * @author chris
+ */
+public class CallbackWatchdog {
+	private static Log log = LogFactory.getLog(CallbackWatchdog.class);
+
+	private long thresholdNanos;
+	private ScheduledExecutorService scheduler = null;
+
+	private ConcurrentLinkedQueue<Slot> slots = new ConcurrentLinkedQueue<Slot>();
+	private Set<TimedTask> waiting = Collections.newSetFromMap(new ConcurrentHashMap<TimedTask, Boolean>());
+	private volatile long oldestQueuedNanos = 0;
+	private volatile int stalled = 0;
+	private TimedTask reportedOldest = null;
+
+	private ThreadLocal<Slot> slot = new ThreadLocal<Slot>() {
+		@Override
+		protected Slot initialValue() {
+			Slot s = new Slot(Thread.currentThread());
+			slots.add(s);
+			return s;
+		}
+	};
+
+	private static class Slot {
+		private final Thread thread;
+		private volatile Running running = null;
+		private Running reported = null;
+
+		public Slot(Thread thread) {
+			this.thread = thread;
+		}
+	}
+
+	/**
+	 * What a slot is running, published as one write so the sampler
+	 * never sees the class of one callback with the start of another.
+	 */
+	private static class Running {
+		private final Class<?> callbackClass;
+		private final long started;
+
+		public Running(Class<?> callbackClass, long started) {
+			this.callbackClass = callbackClass;
+			this.started = started;
+		}
+	}
+
+	private class TimedTask implements Callable<Object> {
+		private Callable<Object> task;
+		private long queuedAt = System.nanoTime();
+
+		public TimedTask(Callable<Object> task) {
+			this.task = task;
+		}
+
+		@Override
+		public Object call() throws Exception {
+			waiting.remove(this);
+
+			// tasks can nest when a thread helps out while waiting
+			Slot s = slot.get();
+			Running outer = s.running;
+			s.running = new Running(task instanceof Continuation ? ((Continuation) task).getCallback().getClass() : task.getClass(), System.nanoTime());
+			try {
+				return task.call();
+			} finally {
+				s.running = outer;
+			}
+		}
+	}
+
+	public CallbackWatchdog(long threshold, TimeUnit units) {
+		this.thresholdNanos = units.toNanos(threshold);
+	}
+
+	/**
+	 * Wraps a task so its time in the queue and running are watched.
+	 */
+	public Callable<Object> wrap(Callable<Object> task) {
+		TimedTask t = new TimedTask(task);
+		waiting.add(t);
+		return t;
+	}
+
+	/**
+	 * Stops watching a wrapped task which will not run, because the
+	 * executor refused it.
+	 */
+	public void discard(Callable<Object> task) {
+		waiting.remove(task);
+	}
+
+	public synchronized void start() {
+		if(scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "promises-watchdog");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			long period = Math.max(1, thresholdNanos / 2);
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						sample();
+					} catch (Exception e) {
+						log.error("Error sampling callbacks", e);
+					}
+				}
+			}, period, period, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	public synchronized void stop() {
+		if(scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		waiting.clear();
+		reportedOldest = null;
+	}
+
+	/**
+	 * @return the number of watched tasks waiting to run.
+	 */
+	public int getQueueDepth() {
+		return waiting.size();
+	}
+
+	/**
+	 * @return how long the oldest waiting task had been queued when last sampled.
+	 */
+	public long getOldestQueuedAge(TimeUnit units) {
+		return units.convert(oldestQueuedNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return the number of threads running a callback for longer than the threshold when last sampled.
+	 */
+	public int getStalledCount() {
+		return stalled;
+	}
+
+	protected void sample() {
+		long now = System.nanoTime();
+		int stalledNow = 0;
+
+		for(Iterator<Slot> i = slots.iterator(); i.hasNext(); ) {
+			Slot s = i.next();
+			if(!s.thread.isAlive()) {
+				i.remove();
+				continue;
+			}
+			Running r = s.running;
+			if(r != null && now - r.started > thresholdNanos) {
+				stalledNow++;
+				if(s.reported != r) {
+					s.reported = r;
+					report(s, r, now - r.started);
+				}
+			}
+		}
+		stalled = stalledNow;
+
+		TimedTask oldest = null;
+		int depth = 0;
+		for(TimedTask t : waiting) {
+			depth++;
+			if(oldest == null || t.queuedAt - oldest.queuedAt < 0) {
+				oldest = t;
+			}
+		}
+		oldestQueuedNanos = oldest == null ? 0 : now - oldest.queuedAt;
+		if(oldestQueuedNanos > thresholdNanos && oldest != reportedOldest) {
+			reportedOldest = oldest;
+			log.warn("Executor saturated: " + depth + " tasks queued, oldest waiting "
+					+ TimeUnit.NANOSECONDS.toMillis(oldestQueuedNanos) + "ms");
+		}
+	}
+
+	private void report(Slot s, Running r, long runningNanos) {
+		StringBuilder b = new StringBuilder();
+		b.append("Callback ");
+		b.append(r.callbackClass.getName());
+		b.append(" has been running for ");
+		b.append(TimeUnit.NANOSECONDS.toMillis(runningNanos));
+		b.append("ms on ");
+		b.append(s.thread.getName());
+		for(StackTraceElement e : s.thread.getStackTrace()) {
+			b.append("\n\tat ");
+			b.append(e);
+		}
+		log.warn(b.toString());
+	}
+}
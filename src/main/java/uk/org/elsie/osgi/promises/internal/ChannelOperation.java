@@ -0,0 +1,120 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.org.elsie.osgi.promises.Canceller;
+import uk.org.elsie.osgi.promises.Deferred;
+import uk.org.elsie.osgi.promises.Promise;
+import uk.org.elsie.osgi.promises.PromisesService;
+
+/**
+ * An I/O operation on an asynchronous channel, settling a deferred
+ * straight from the channel's completion handler so no thread waits on it.
+ * Subclasses start the I/O in begin, passing this as the handler, and
+ * either start more I/O or call finish when it completes.
+ * <p>
+ * Pending reads and writes on these channels can only be stopped by
+ * closing the channel, so cancelling only succeeds when interrupting is
+ * allowed, and closes the channel.
+ * @author chris
+ */
+public abstract class ChannelOperation<V> implements CompletionHandler<V, Object>, Canceller {
+	private static Log log = LogFactory.getLog(ChannelOperation.class);
+
+	private AsynchronousChannel channel;
+	private Deferred deferred;
+	private volatile boolean cancelled = false;
+	private AtomicBoolean abandoned = new AtomicBoolean();
+
+	public ChannelOperation(PromisesService promises, AsynchronousChannel channel) {
+		this.channel = channel;
+		this.deferred = promises.defer();
+		this.deferred.setCanceller(this);
+	}
+
+	public Promise start() {
+		try {
+			begin();
+		} catch (RuntimeException e) {
+			failed(e, null);
+		}
+		return deferred.getPromise();
+	}
+
+	/**
+	 * Starts the first read or write.
+	 */
+	protected abstract void begin();
+
+	/**
+	 * Called with the result of each read or write.
+	 */
+	protected abstract void step(V result);
+
+	/**
+	 * Called once if the operation fails, to give back resources.
+	 */
+	protected void abandon() {
+	}
+
+	protected void finish(Object value) {
+		synchronized (deferred) {
+			if(!cancelled && !deferred.isDone()) {
+				deferred.resolve(value);
+			}
+		}
+	}
+
+	private void giveUp() {
+		if(abandoned.compareAndSet(false, true)) {
+			abandon();
+		}
+	}
+
+	@Override
+	public void completed(V result, Object attachment) {
+		if(cancelled) {
+			return;
+		}
+		try {
+			step(result);
+		} catch (RuntimeException e) {
+			failed(e, attachment);
+		}
+	}
+
+	@Override
+	public void failed(Throwable e, Object attachment) {
+		if(cancelled) {
+			return;
+		}
+		giveUp();
+		synchronized (deferred) {
+			if(!deferred.isDone()) {
+				deferred.reject(e);
+			}
+		}
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if(!mayInterruptIfRunning) {
+			return false;
+		}
+		cancelled = true;
+		// the channel may still be using buffers while it closes, so don't give them back
+		abandoned.set(true);
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warn("Error closing cancelled channel", e);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,53 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.util.concurrent.Callable;
+
+import uk.org.elsie.osgi.promises.Callback;
+import uk.org.elsie.osgi.promises.ExpectedFailureException;
+import uk.org.elsie.osgi.promises.Promise;
+import uk.org.elsie.osgi.promises.PromisesService;
+
+/**
+ * Runs a callback on a settled value and passes its outcome on to the
+ * deferred returned from then. When the callback returns a promise, the
+ * deferred's priority is passed on to the callbacks which wait for it.
+ * @author chris
+ */
+public class Continuation implements Callable<Object> {
+	private PromisesService promises;
+	private Callback callback;
+	private Object value;
+	private DeferredImpl deferred;
+
+	public Continuation(PromisesService promises, Callback callback, Object value, DeferredImpl deferred) {
+		this.promises = promises;
+		this.callback = callback;
+		this.value = value;
+		this.deferred = deferred;
+	}
+
+	public Callback getCallback() {
+		return callback;
+	}
+
+	@Override
+	public Object call() throws Exception {
+		try {
+			Object newResult = callback.callback(value);
+			if(newResult != null && promises.isPromise(newResult)) {
+				((Promise) newResult).then(
+						deferred.getResolveCallback(),
+						deferred.getRejectCallback(),
+						deferred.getProgressCallback(),
+						deferred.getPriority());
+			} else if(promises.isFailure(newResult)) {
+				deferred.reject(newResult);
+			} else {
+				deferred.resolve(newResult);
+			}
+		} catch (Exception e) {
+			deferred.reject(ExpectedFailureException.unwrap(e));
+		}
+		return null;
+	}
+}
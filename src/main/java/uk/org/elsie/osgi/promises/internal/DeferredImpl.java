@@ -15,7 +15,9 @@ import org.apache.commons.logging.LogFactory;
 import uk.org.elsie.osgi.promises.Callback;
 import uk.org.elsie.osgi.promises.Canceller;
 import uk.org.elsie.osgi.promises.Deferred;
+import uk.org.elsie.osgi.promises.ExpectedFailure;
 import uk.org.elsie.osgi.promises.FailureCollectorService;
+import uk.org.elsie.osgi.promises.Priority;
 import uk.org.elsie.osgi.promises.Promise;
 import uk.org.elsie.osgi.promises.PromisesService;
 
@@ -32,12 +34,20 @@ public class DeferredImpl implements Future<Object>, Canceller, Deferred {
 	private Object result = null;
 	private List<Listener> waiting = new ArrayList<Listener> ();
 	private Reference<Object> collectable = null;
+	private PromiseScopeImpl scope = null;
+	private volatile int priority = Priority.NORMAL;
 	
 	private class DeferredPromise extends AbstractPromise {
 		
 		public DeferredPromise() {
 		}
 
+		@Override
+		public Object then(Callback callback, Callback errback,
+				Callback progressback, int priority) {
+			return DeferredImpl.this.then(callback, errback, progressback, priority);
+		}
+
 		@Override
 		public Object then(Callback callback, Callback errback,
 				Callback progressback) {
@@ -89,7 +99,21 @@ public class DeferredImpl implements Future<Object>, Canceller, Deferred {
 		this.promise = new DeferredPromise();
 	}
 	
-	public synchronized void notifyAllListeners(Object value) {
+	public void notifyAllListeners(Object value) {
+		settle(value, true);
+	}
+
+	/**
+	 * Settles with an outcome which was reported when it first happened,
+	 * such as one recovered from a journal, so an unobserved failure is
+	 * neither thrown nor passed to the failure collector again.
+	 */
+	synchronized void settleQuietly(boolean isError, Object value) {
+		this.isError = isError;
+		settle(value, false);
+	}
+
+	private synchronized void settle(Object value, boolean report) {
 		if(finished) {
 			throw new RuntimeException("already finished");
 		}
@@ -98,23 +122,29 @@ public class DeferredImpl implements Future<Object>, Canceller, Deferred {
 		finished = true;
 		FailureCollectorService failureCollector = promises.getFailureCollectorService();
 
-		if(isError && waiting.isEmpty()) {
-			if(rejectImmediately) {
-				throw new RuntimeException(result.toString(), (result instanceof Exception) ? ((Exception)result) : null);
-			} else if(failureCollector != null) {
-				collectable = failureCollector.failed(result);
-			} else {
-				log.warn("Uncollected error" + result.toString(), (result instanceof Exception) ? ((Exception)result) : null);
+		try {
+			if(report && isError && waiting.isEmpty() && !ExpectedFailure.isExpected(result)) {
+				if(rejectImmediately) {
+					throw new RuntimeException(result.toString(), (result instanceof Exception) ? ((Exception)result) : null);
+				} else if(failureCollector != null) {
+					collectable = failureCollector.failed(result);
+				} else {
+					log.warn("Uncollected error" + result.toString(), (result instanceof Exception) ? ((Exception)result) : null);
+				}
+			}
+			
+			for(Listener o : waiting) {
+				notifyListener(o);
+			}
+		} finally {
+			if(scope != null) {
+				scope.settled(this);
 			}
-		}
-		
-		for(Listener o : waiting) {
-			notifyListener(o);
 		}
 	}
 
-	protected void notifyListener(final Listener listener) {
-		final Callback cb = !isError ? listener.getCallback() : listener.getErrback();
+	protected void notifyListener(Listener listener) {
+		Callback cb = !isError ? listener.getCallback() : listener.getErrback();
 		
 		FailureCollectorService failureCollector = promises.getFailureCollectorService();
 		if(isError && collectable != null && failureCollector != null) {
@@ -123,27 +153,7 @@ public class DeferredImpl implements Future<Object>, Canceller, Deferred {
 		}
 		
 		if(cb != null) {
-			enqueue(new Callable<Object>() {
-				@Override
-				public Object call() throws Exception {
-					try {
-						Object newResult = cb.callback(result);
-						if(newResult != null && promises.isPromise(newResult)) {
-							((Promise) newResult).then(
-									listener.getDeferred().getResolveCallback(), 
-									listener.getDeferred().getRejectCallback(),
-									listener.getDeferred().getProgressCallback());
-						} else if(promises.isFailure(newResult)) {
-							listener.getDeferred().reject(newResult);
-						} else {
-							listener.getDeferred().resolve(newResult);
-						}
-					} catch (Exception e) {
-						listener.getDeferred().reject(e);
-					}
-					return null;
-				}
-			});
+			enqueue(new Continuation(promises, cb, result, listener.getDeferred()), listener.getPriority());
 		} else {
 			if(isError) {
 				listener.getDeferred().reject(result);
@@ -219,13 +229,40 @@ public class DeferredImpl implements Future<Object>, Canceller, Deferred {
 		}
 	}
 
+	void setScope(PromiseScopeImpl scope) {
+		this.scope = scope;
+	}
+	
+	synchronized boolean hasCollectable() {
+		return collectable != null;
+	}
+	
+	/**
+	 * Hands over the failure collector's reference to an unobserved
+	 * failure, so that the caller can release it.
+	 * @return the reference, or null if there is none.
+	 */
+	synchronized Reference<Object> releaseCollectable() {
+		Reference<Object> ref = collectable;
+		collectable = null;
+		return ref;
+	}
+
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+	
+	public int getPriority() {
+		return priority;
+	}
+	
 	public void setCanceller(Canceller canceller) {
 		this.canceller = canceller;
 	}
 	
 	public synchronized boolean cancel(boolean mayInterruptIfRunning) {
 		if(canceller != null && !cancelled && !finished) {
-			Object result = "cancelled";
+			Object result = ExpectedFailure.CANCELLED;
 			try {
 				cancelled = canceller.cancel(mayInterruptIfRunning);
 			} catch (Exception e) {
@@ -242,9 +279,14 @@ public class DeferredImpl implements Future<Object>, Canceller, Deferred {
 		}
 	}
 	
-	public synchronized Object then(Callback resolvedCallback, Callback errorCallback, Callback progressCallback) {
+	public Object then(Callback resolvedCallback, Callback errorCallback, Callback progressCallback) {
+		return then(resolvedCallback, errorCallback, progressCallback, priority);
+	}
+	
+	public synchronized Object then(Callback resolvedCallback, Callback errorCallback, Callback progressCallback, int priority) {
 		DeferredImpl retDeferred = new DeferredImpl(promises, promise, rejectImmediately);
-		Listener listener = new Listener(resolvedCallback, errorCallback, progressCallback, retDeferred);
+		retDeferred.setPriority(priority);
+		Listener listener = new Listener(resolvedCallback, errorCallback, progressCallback, retDeferred, priority);
 		if(finished) {
 			notifyListener(listener);
 		} else {
@@ -283,6 +325,10 @@ public class DeferredImpl implements Future<Object>, Canceller, Deferred {
 	}
 	
 	private Future<Object> enqueue(Callable<Object> callable) {
-		return promises.getScheduledExecutorService().submit(callable);
+		return enqueue(callable, priority);
+	}
+	
+	private Future<Object> enqueue(Callable<Object> callable, int priority) {
+		return promises.submit(callable, priority);
 	}
 }
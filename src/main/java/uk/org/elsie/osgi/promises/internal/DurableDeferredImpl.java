@@ -0,0 +1,103 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import uk.org.elsie.osgi.promises.DurableDeferred;
+import uk.org.elsie.osgi.promises.PromisesService;
+
+/**
+ * Deferred which journals its outcome before settling. Settling is
+ * handed to the journal, which settles the deferred once the record has
+ * been committed, so listeners never see an outcome that a crash could lose.
+ * As with any deferred, settling one a second time throws, even while
+ * the first outcome is still waiting to be committed.
+ * @author chris
+ */
+public class DurableDeferredImpl extends DeferredImpl implements DurableDeferred {
+	private MappedJournal journal;
+	private String id;
+	private boolean settling = false;
+
+	/** the last journalled record type and payload, for rewriting into a new segment */
+	byte state = MappedJournal.CREATE;
+	byte[] payload = null;
+
+	public DurableDeferredImpl(PromisesService promises, MappedJournal journal, String id, boolean rejectImmediately) {
+		super(promises, null, rejectImmediately);
+		this.journal = journal;
+		this.id = id;
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public synchronized void resolve(final Object value) {
+		if(settling) {
+			throw new RuntimeException("already finished");
+		}
+		journal.settle(this, MappedJournal.RESOLVE, value, new Runnable() {
+			@Override
+			public void run() {
+				committed(false, value);
+			}
+		});
+		settling = true;
+	}
+
+	@Override
+	public synchronized void rejectNow(final Object reason) {
+		if(settling) {
+			throw new RuntimeException("already finished");
+		}
+		journal.settle(this, MappedJournal.REJECT, reason, new Runnable() {
+			@Override
+			public void run() {
+				committed(true, reason);
+			}
+		});
+		settling = true;
+	}
+
+	/**
+	 * Journals the rejection straight away, so a second settle throws
+	 * to its caller. Listeners still hear of it later, once committed.
+	 */
+	@Override
+	public void reject(Object reason) {
+		rejectNow(reason);
+	}
+
+	@Override
+	public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+		if(settling) {
+			return false;
+		}
+		return super.cancel(mayInterruptIfRunning);
+	}
+
+	/**
+	 * Settles once the journal has committed the outcome.
+	 */
+	private synchronized void committed(boolean isError, Object value) {
+		if(isDone()) {
+			return;
+		}
+		if(isError) {
+			super.rejectNow(value);
+		} else {
+			super.resolve(value);
+		}
+	}
+
+	/**
+	 * Settles with an outcome recovered from the journal. It was reported
+	 * when it first happened, so a failure is not thrown or collected again.
+	 */
+	synchronized void restore(boolean isError, Object value) {
+		settling = true;
+		if(!isDone()) {
+			settleQuietly(isError, value);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A socket on a {@link SelectorLoop}, split into length-prefixed frames.
+ * Only the selector thread reads and writes the socket; other threads
+ * queue output with {@link SelectorLoop#send}.
+ * @author chris
+ */
+public class FrameConnection {
+	final SocketChannel channel;
+	SelectionKey key;
+	ByteBuffer inbound = ByteBuffer.allocate(64 * 1024);
+	final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+	boolean closed = false;
+	private volatile Object attachment;
+
+	FrameConnection(SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	public Object getAttachment() {
+		return attachment;
+	}
+
+	public void setAttachment(Object attachment) {
+		this.attachment = attachment;
+	}
+
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+}
@@ -0,0 +1,53 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import uk.org.elsie.osgi.promises.Callback;
+import uk.org.elsie.osgi.promises.ExpectedFailureException;
+import uk.org.elsie.osgi.promises.Promise;
+import uk.org.elsie.osgi.promises.PromisesService;
+
+/**
+ * Sequence whose values come from a producer callback, called once per
+ * value with its index, starting at 0. The producer returns the value,
+ * a promise of it, or END. It is not called again after END.
+ * @author chris
+ */
+public class GeneratorSequence extends AbstractSequence {
+	private Callback producer;
+	private int index = 0;
+	private volatile boolean ended = false;
+
+	private Callback checkEnd = new Callback() {
+		@Override
+		public Object callback(Object input) {
+			if(input == END) {
+				ended = true;
+			}
+			return input;
+		}
+	};
+
+	public GeneratorSequence(PromisesService promises, Callback producer) {
+		super(promises);
+		this.producer = producer;
+	}
+
+	@Override
+	protected Promise pull() {
+		if(ended) {
+			return promises.ref(END);
+		}
+		Object value;
+		try {
+			value = producer.callback(index++);
+		} catch (Exception e) {
+			return promises.reject(ExpectedFailureException.unwrap(e));
+		}
+		if(promises.isPromise(value)) {
+			return promises.when(value, checkEnd);
+		} else if(promises.isFailure(value)) {
+			return promises.reject(value);
+		}
+		checkEnd.callback(value);
+		return promises.ref(value);
+	}
+}
@@ -7,12 +7,14 @@ public class Listener {
 	private Callback errback;
 	private Callback progressback;
 	private DeferredImpl deferred;
+	private int priority;
 	
-	public Listener(Callback callback, Callback errback, Callback progressback, DeferredImpl deferred) {
+	public Listener(Callback callback, Callback errback, Callback progressback, DeferredImpl deferred, int priority) {
 		this.callback = callback;
 		this.errback = errback;
 		this.progressback = progressback;
 		this.deferred = deferred;
+		this.priority = priority;
 	}
 	
 	public Callback getCallback() {
@@ -30,4 +32,8 @@ public class Listener {
 	public DeferredImpl getDeferred() {
 		return deferred;
 	}
+	
+	public int getPriority() {
+		return priority;
+	}
 }
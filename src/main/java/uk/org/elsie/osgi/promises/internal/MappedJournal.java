@@ -0,0 +1,472 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.org.elsie.osgi.promises.CallbackFailure;
+import uk.org.elsie.osgi.promises.Deferred;
+import uk.org.elsie.osgi.promises.DeferredJournal;
+import uk.org.elsie.osgi.promises.DurableDeferred;
+import uk.org.elsie.osgi.promises.Promise;
+import uk.org.elsie.osgi.promises.PromisesService;
+
+/**
+ * Journal kept in a directory of memory-mapped segment files.
+ * Records are copied into the current segment under a lock, and a commit
+ * scheduled shortly afterwards forces everything appended in the meantime
+ * to disk in one go before settling the deferreds waiting on it.
+ * <p>
+ * When a segment fills, a new one is started with a snapshot of the
+ * deferreds still in the journal, and the old segments are deleted.
+ * Deferreds whose outcome has been committed and passed to their
+ * listeners are left out of the snapshot.
+ * Recovery reads the segments in order, starting again at each snapshot,
+ * and stops reading a segment at the first torn or zeroed record.
+ * <p>
+ * Each record is its length, a CRC32 of the rest, the record type,
+ * the deferred's id and, for outcomes, the serialized value.
+ * @author chris
+ */
+public class MappedJournal implements DeferredJournal {
+	private static Log log = LogFactory.getLog(MappedJournal.class);
+
+	static final byte CREATE = 1;
+	static final byte RESOLVE = 2;
+	static final byte REJECT = 3;
+	static final byte FORGET = 4;
+	static final byte SNAPSHOT = 5;
+
+	private static final byte SERIALIZED = 0;
+	private static final byte STRING = 1;
+	private static final String PREFIX = "journal-";
+	private static final String SUFFIX = ".log";
+
+	private PromisesService promises;
+	private boolean rejectImmediately;
+	private File directory;
+	private int segmentSize;
+	private long commitDelay;
+	private TimeUnit commitUnits;
+
+	private Map<String, DurableDeferredImpl> entries = new LinkedHashMap<String, DurableDeferredImpl>();
+	private List<File> segments = new ArrayList<File>();
+	private long sequence = 0;
+	private MappedByteBuffer buffer = null;
+	private List<Runnable> uncommitted = new ArrayList<Runnable>();
+	private boolean commitScheduled = false;
+	private boolean closed = false;
+
+	private Callable<Object> commit = new Callable<Object>() {
+		@Override
+		public Object call() throws Exception {
+			commit();
+			return null;
+		}
+	};
+
+	/**
+	 * @param segmentSize the size of each segment file in bytes.
+	 * @param commitDelay how long to gather records before forcing them to disk.
+	 */
+	public MappedJournal(PromisesService promises, boolean rejectImmediately, File directory, int segmentSize, long commitDelay, TimeUnit units) {
+		this.promises = promises;
+		this.rejectImmediately = rejectImmediately;
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.commitDelay = commitDelay;
+		this.commitUnits = units;
+	}
+
+	/**
+	 * Recovers the deferreds from any existing segments, then starts
+	 * a fresh segment holding a snapshot of them.
+	 */
+	public synchronized void open() throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create journal directory " + directory);
+		}
+		File[] found = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		Arrays.sort(found);
+		for(File f : found) {
+			recover(f);
+			segments.add(f);
+			sequence = Math.max(sequence, parseSequence(f));
+		}
+		// keep what was recovered until the next segment, so it can be looked up
+		rotate(0, false);
+
+		int pending = getPending().size();
+		log.info("Recovered " + entries.size() + " durable deferreds, " + pending + " pending, from " + directory);
+	}
+
+	@Override
+	public DurableDeferred defer() {
+		return defer(UUID.randomUUID().toString());
+	}
+
+	@Override
+	public DurableDeferred defer(String id) {
+		DurableDeferredImpl d = new DurableDeferredImpl(promises, this, id, rejectImmediately);
+		synchronized (this) {
+			if(entries.containsKey(id)) {
+				throw new IllegalStateException("Durable deferred " + id + " already exists");
+			}
+			append(CREATE, id, null, null);
+			entries.put(id, d);
+		}
+		return d;
+	}
+
+	@Override
+	public synchronized DurableDeferred get(String id) {
+		return entries.get(id);
+	}
+
+	@Override
+	public synchronized Collection<DurableDeferred> getPending() {
+		List<DurableDeferred> pending = new ArrayList<DurableDeferred>();
+		for(DurableDeferredImpl d : entries.values()) {
+			if(d.state == CREATE) {
+				pending.add(d);
+			}
+		}
+		return pending;
+	}
+
+	@Override
+	public synchronized void forget(String id) {
+		if(entries.remove(id) != null) {
+			append(FORGET, id, null, null);
+		}
+	}
+
+	@Override
+	public Promise flush() {
+		final Deferred d = promises.defer();
+		synchronized (this) {
+			if(uncommitted.isEmpty() && !commitScheduled) {
+				return promises.ref(null);
+			}
+			uncommitted.add(new Runnable() {
+				@Override
+				public void run() {
+					d.resolve(null);
+				}
+			});
+		}
+		return d.getPromise();
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			if(closed) {
+				return;
+			}
+			closed = true;
+		}
+		commit();
+	}
+
+	/**
+	 * Journals the outcome of a deferred, running settled once it is on disk.
+	 */
+	void settle(DurableDeferredImpl d, byte type, Object value, Runnable settled) {
+		byte[] payload = encode(value);
+		synchronized (this) {
+			if(entries.get(d.getId()) != d) {
+				// forgotten, so there is nothing to keep
+				settled.run();
+				return;
+			}
+			append(type, d.getId(), payload, settled);
+			d.state = type;
+			d.payload = payload;
+		}
+	}
+
+	private void append(byte type, String id, byte[] payload, Runnable committed) {
+		if(closed) {
+			throw new IllegalStateException("journal closed");
+		}
+		byte[] record = record(type, id, payload);
+		try {
+			if(buffer.remaining() < record.length) {
+				rotate(record.length, true);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not start a new journal segment", e);
+		}
+		buffer.put(record);
+		if(committed != null) {
+			uncommitted.add(committed);
+		}
+		if(!commitScheduled) {
+			commitScheduled = true;
+			promises.schedule(commit, commitDelay, commitUnits);
+		}
+	}
+
+	/**
+	 * Forces appended records to disk, then runs whatever was waiting on them.
+	 */
+	protected void commit() {
+		MappedByteBuffer b;
+		List<Runnable> committed;
+		synchronized (this) {
+			commitScheduled = false;
+			b = buffer;
+			committed = uncommitted;
+			uncommitted = new ArrayList<Runnable>();
+		}
+		if(b != null) {
+			b.force();
+		}
+		for(Runnable r : committed) {
+			try {
+				r.run();
+			} catch (Exception e) {
+				log.error("Error settling journalled deferred", e);
+			}
+		}
+	}
+
+	/**
+	 * Starts a new segment with a snapshot of the journal, then deletes the old ones.
+	 * @param extra room to leave for the record which did not fit.
+	 * @param dropSettled whether to drop deferreds which have been settled.
+	 */
+	private void rotate(int extra, boolean dropSettled) throws IOException {
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+		snapshot.write(record(SNAPSHOT, "", null));
+		for(Iterator<DurableDeferredImpl> i = entries.values().iterator(); i.hasNext(); ) {
+			DurableDeferredImpl d = i.next();
+			if(dropSettled && d.state != CREATE && d.isDone()) {
+				i.remove();
+				continue;
+			}
+			snapshot.write(record(CREATE, d.getId(), null));
+			if(d.state != CREATE) {
+				snapshot.write(record(d.state, d.getId(), d.payload));
+			}
+		}
+
+		File file = new File(directory, String.format("%s%020d%s", PREFIX, ++sequence, SUFFIX));
+		int size = Math.max(segmentSize, 2 * (snapshot.size() + extra));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		MappedByteBuffer next;
+		try {
+			next = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+		next.put(snapshot.toByteArray());
+		next.force();
+
+		// anything appended to the old segment is covered by the snapshot, so it can go
+		if(buffer != null) {
+			buffer.force();
+		}
+		buffer = next;
+		for(File old : segments) {
+			if(!old.delete()) {
+				log.debug("Could not delete old journal segment " + old);
+			}
+		}
+		segments.clear();
+		segments.add(file);
+	}
+
+	private void recover(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer b;
+		try {
+			b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+
+		CRC32 crc = new CRC32();
+		try {
+			while(b.remaining() >= 8) {
+				int length = b.getInt();
+				int checksum = b.getInt();
+				if(length <= 0 || length > b.remaining()) {
+					break;
+				}
+				byte[] body = new byte[length];
+				b.get(body);
+				crc.reset();
+				crc.update(body);
+				if((int) crc.getValue() != checksum) {
+					log.warn("Torn record in journal segment " + file + ", ignoring the rest of it");
+					break;
+				}
+				replay(body);
+			}
+		} catch (BufferUnderflowException e) {
+			log.warn("Truncated journal segment " + file);
+		}
+	}
+
+	private void replay(byte[] body) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		byte type = in.readByte();
+		String id = in.readUTF();
+		byte[] payload = null;
+		int n = in.readInt();
+		if(n >= 0) {
+			payload = new byte[n];
+			in.readFully(payload);
+		}
+
+		switch(type) {
+		case SNAPSHOT:
+			entries.clear();
+			break;
+		case CREATE:
+			if(!entries.containsKey(id)) {
+				entries.put(id, new DurableDeferredImpl(promises, this, id, rejectImmediately));
+			}
+			break;
+		case RESOLVE:
+		case REJECT:
+			DurableDeferredImpl d = entries.get(id);
+			if(d != null && d.state == CREATE) {
+				d.state = type;
+				d.payload = payload;
+				d.restore(type == REJECT, decode(payload, type == REJECT));
+			}
+			break;
+		case FORGET:
+			entries.remove(id);
+			break;
+		default:
+			log.warn("Unknown journal record type " + type + " for " + id);
+		}
+	}
+
+	private static byte[] record(byte type, String id, byte[] payload) throws IllegalStateException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeByte(type);
+			out.writeUTF(id);
+			if(payload == null) {
+				out.writeInt(-1);
+			} else {
+				out.writeInt(payload.length);
+				out.write(payload);
+			}
+			out.close();
+
+			byte[] record = bytes.toByteArray();
+			int length = record.length - 8;
+			CRC32 crc = new CRC32();
+			crc.update(record, 8, length);
+			writeInt(record, 0, length);
+			writeInt(record, 4, (int) crc.getValue());
+			return record;
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void writeInt(byte[] b, int offset, int v) {
+		b[offset] = (byte) (v >>> 24);
+		b[offset + 1] = (byte) (v >>> 16);
+		b[offset + 2] = (byte) (v >>> 8);
+		b[offset + 3] = (byte) v;
+	}
+
+	private static byte[] encode(Object value) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			bytes.write(SERIALIZED);
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(value);
+			out.close();
+		} catch (IOException e) {
+			log.debug("Journalling " + value + " as a string: " + e);
+			bytes.reset();
+			try {
+				DataOutputStream out = new DataOutputStream(bytes);
+				out.writeByte(STRING);
+				out.writeUTF(String.valueOf(value));
+				out.close();
+			} catch (IOException e1) {
+				throw new IllegalStateException(e1);
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Object decode(byte[] payload, boolean isError) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		if(in.readByte() == STRING) {
+			String s = in.readUTF();
+			return isError ? new CallbackFailure(s) : s;
+		}
+		try {
+			// look in the context class loader first, as this bundle can't see its clients' classes
+			return new ObjectInputStream(in) {
+				@Override
+				protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+					ClassLoader loader = Thread.currentThread().getContextClassLoader();
+					if(loader != null) {
+						try {
+							return Class.forName(desc.getName(), false, loader);
+						} catch (ClassNotFoundException e) {
+						}
+					}
+					return super.resolveClass(desc);
+				}
+			}.readObject();
+		} catch (ClassNotFoundException e) {
+			log.warn("Journalled value of unknown class " + e.getMessage());
+			return new CallbackFailure("Journalled value of unknown class " + e.getMessage(), e);
+		}
+	}
+
+	private static long parseSequence(File f) {
+		String name = f.getName();
+		try {
+			return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
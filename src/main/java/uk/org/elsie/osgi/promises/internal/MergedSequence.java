@@ -0,0 +1,215 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import uk.org.elsie.osgi.promises.Callback;
+import uk.org.elsie.osgi.promises.Deferred;
+import uk.org.elsie.osgi.promises.ExpectedFailureException;
+import uk.org.elsie.osgi.promises.Promise;
+import uk.org.elsie.osgi.promises.PromisesService;
+import uk.org.elsie.osgi.promises.Sequence;
+
+/**
+ * Maps each upstream value to an inner sequence and merges up to
+ * concurrency inner sequences at once. Each inner sequence has at most
+ * one value pulled ahead, which waits in ready until it is asked for, so
+ * no more than concurrency values are held at a time. A failure from an
+ * inner sequence is passed on and ends that inner sequence.
+ * @author chris
+ */
+public class MergedSequence extends AbstractSequence {
+	private Sequence upstream;
+	private Callback mapper;
+	private int concurrency;
+
+	private LinkedList<Deferred> waiting = new LinkedList<Deferred>();
+	private LinkedList<Item> ready = new LinkedList<Item>();
+	private List<Sequence> inner = new ArrayList<Sequence>();
+	private boolean upstreamEnded = false;
+	private boolean upstreamPending = false;
+
+	private static class Item {
+		private Sequence source;
+		private Object value;
+		private boolean error;
+
+		public Item(Sequence source, Object value, boolean error) {
+			this.source = source;
+			this.value = value;
+			this.error = error;
+		}
+	}
+
+	public MergedSequence(PromisesService promises, Sequence upstream, Callback mapper, int concurrency) {
+		super(promises);
+		if(concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be at least 1");
+		}
+		this.upstream = upstream;
+		this.mapper = mapper;
+		this.concurrency = concurrency;
+	}
+
+	@Override
+	protected Promise pull() {
+		Deferred d = promises.defer();
+		synchronized (this) {
+			waiting.add(d);
+		}
+		pump();
+		return d.getPromise();
+	}
+
+	/**
+	 * Hands ready values to waiting pulls and starts more pulls on the
+	 * inner sequences and upstream. The pulls are started outside the lock,
+	 * since upstream may call back into user code straight away.
+	 */
+	private void pump() {
+		List<Sequence> refill = new ArrayList<Sequence>();
+		List<Deferred> ending = null;
+		boolean pullUpstream = false;
+
+		synchronized (this) {
+			while(!waiting.isEmpty() && !ready.isEmpty()) {
+				Deferred d = waiting.poll();
+				Item item = ready.poll();
+				if(item.error) {
+					d.reject(item.value);
+				} else {
+					d.resolve(item.value);
+				}
+				if(item.source != null) {
+					refill.add(item.source);
+				}
+			}
+			if(!isClosed() && !upstreamEnded && !upstreamPending && inner.size() < concurrency) {
+				upstreamPending = pullUpstream = true;
+			}
+			if(ready.isEmpty() && inner.isEmpty() && (upstreamEnded || isClosed()) && !upstreamPending) {
+				ending = new ArrayList<Deferred>(waiting);
+				waiting.clear();
+			}
+		}
+
+		if(ending != null) {
+			for(Deferred d : ending) {
+				d.resolve(END);
+			}
+		}
+		for(Sequence s : refill) {
+			request(s);
+		}
+		if(pullUpstream) {
+			pullUpstream();
+		}
+	}
+
+	private void request(final Sequence source) {
+		promises.when(source.next(), new Callback() {
+			@Override
+			public Object callback(Object input) {
+				synchronized (MergedSequence.this) {
+					if(input == END) {
+						inner.remove(source);
+					} else {
+						ready.add(new Item(source, input, false));
+					}
+				}
+				pump();
+				return null;
+			}
+		}, new Callback() {
+			@Override
+			public Object callback(Object input) {
+				synchronized (MergedSequence.this) {
+					inner.remove(source);
+					ready.add(new Item(null, input, true));
+				}
+				pump();
+				return null;
+			}
+		});
+	}
+
+	private void pullUpstream() {
+		promises.when(upstream.next(), new Callback() {
+			@Override
+			public Object callback(Object input) {
+				if(input == END) {
+					synchronized (MergedSequence.this) {
+						upstreamEnded = true;
+						upstreamPending = false;
+					}
+				} else {
+					Sequence s;
+					try {
+						s = toSequence(mapper.callback(input));
+					} catch (Exception e) {
+						fail(ExpectedFailureException.unwrap(e));
+						return null;
+					}
+					boolean closed;
+					synchronized (MergedSequence.this) {
+						upstreamPending = false;
+						closed = isClosed();
+						if(!closed) {
+							inner.add(s);
+						}
+					}
+					if(closed) {
+						s.close();
+					} else {
+						request(s);
+					}
+				}
+				pump();
+				return null;
+			}
+		}, new Callback() {
+			@Override
+			public Object callback(Object input) {
+				fail(input);
+				return null;
+			}
+		});
+	}
+
+	private void fail(Object reason) {
+		synchronized (this) {
+			upstreamEnded = true;
+			upstreamPending = false;
+			ready.add(new Item(null, reason, true));
+		}
+		pump();
+	}
+
+	private Sequence toSequence(final Object value) {
+		if(value instanceof Sequence) {
+			return (Sequence) value;
+		}
+		return new GeneratorSequence(promises, new Callback() {
+			@Override
+			public Object callback(Object index) {
+				return ((Integer) index) == 0 ? value : END;
+			}
+		});
+	}
+
+	@Override
+	protected void closed() {
+		List<Sequence> closing;
+		synchronized (this) {
+			closing = new ArrayList<Sequence>(inner);
+			inner.clear();
+			ready.clear();
+		}
+		upstream.close();
+		for(Sequence s : closing) {
+			s.close();
+		}
+		pump();
+	}
+}
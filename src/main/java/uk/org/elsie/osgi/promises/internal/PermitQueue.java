@@ -0,0 +1,299 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.org.elsie.osgi.promises.Callback;
+import uk.org.elsie.osgi.promises.Canceller;
+import uk.org.elsie.osgi.promises.Deferred;
+import uk.org.elsie.osgi.promises.ExpectedFailure;
+import uk.org.elsie.osgi.promises.ExpectedFailureException;
+import uk.org.elsie.osgi.promises.Promise;
+import uk.org.elsie.osgi.promises.PromisesService;
+import uk.org.elsie.osgi.promises.Throttle;
+
+/**
+ * Base class for throttles which hand out permits to a queue of waiting
+ * deferreds. Waiters are queued without locking, and permits are handed
+ * out by whichever thread wins the right to drain the queue. Subclasses
+ * only decide whether a permit is available, and are only asked from
+ * within the drain loop so need no locking of their own for that.
+ * @author chris
+ */
+public abstract class PermitQueue implements Throttle {
+	private static final int WAITING = 0;
+	private static final int GRANTED = 1;
+	private static final int ABANDONED = 2;
+
+	protected PromisesService promises;
+	private ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+	private AtomicInteger wip = new AtomicInteger();
+
+	private class Waiter implements Canceller, Callable<Object> {
+		private AtomicInteger state = new AtomicInteger(WAITING);
+		private Deferred deferred;
+		private volatile Future<Object> timeout;
+
+		public Waiter(Deferred deferred) {
+			this.deferred = deferred;
+			deferred.setCanceller(this);
+		}
+
+		public boolean isWaiting() {
+			return state.get() == WAITING;
+		}
+
+		public boolean grant() {
+			if(state.compareAndSet(WAITING, GRANTED)) {
+				stopTimeout();
+				deferred.resolve(PermitQueue.this);
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if(state.compareAndSet(WAITING, ABANDONED)) {
+				stopTimeout();
+				waiters.remove(this);
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Called when the timeout expires.
+		 */
+		@Override
+		public Object call() throws Exception {
+			if(state.compareAndSet(WAITING, ABANDONED)) {
+				waiters.remove(this);
+				deferred.reject(ExpectedFailure.TIMED_OUT);
+			}
+			return null;
+		}
+
+		private void stopTimeout() {
+			Future<Object> t = timeout;
+			if(t != null) {
+				t.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * An operation run by execute. Cancelling it before the permit is
+	 * granted gives up the place in the queue, and cancelling it after
+	 * the permit is granted but before the operation starts stops the
+	 * operation from running. Once started, cancelling is passed on to
+	 * the promise the operation returned.
+	 */
+	private class Execution implements Canceller {
+		private Callback operation;
+		private Deferred deferred;
+		private Promise current;
+		private boolean started = false;
+		private boolean cancelled = false;
+
+		public Execution(Callback operation) {
+			this.operation = operation;
+		}
+
+		public Promise start() {
+			deferred = promises.defer();
+			Promise permit = acquire();
+			synchronized (this) {
+				current = permit;
+			}
+			deferred.setCanceller(this);
+			permit.then(new Callback() {
+				@Override
+				public Object callback(Object input) {
+					run();
+					return null;
+				}
+			}, new Callback() {
+				@Override
+				public Object callback(Object input) {
+					settle(false, input);
+					return null;
+				}
+			});
+			return deferred.getPromise();
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			Promise c;
+			boolean beforeStart;
+			synchronized (this) {
+				c = current;
+				beforeStart = !started;
+				if(beforeStart) {
+					cancelled = true;
+				}
+			}
+			if(beforeStart) {
+				// gives up the place in the queue if still waiting
+				c.cancel(mayInterruptIfRunning);
+				return true;
+			}
+			return c != null && c.cancel(mayInterruptIfRunning);
+		}
+
+		private void run() {
+			boolean skip;
+			synchronized (this) {
+				skip = cancelled;
+				if(!skip) {
+					started = true;
+					current = null;
+				}
+			}
+			if(skip) {
+				// hand back the permit granted after cancelling
+				completed();
+				return;
+			}
+
+			Object result;
+			try {
+				result = operation.callback(null);
+			} catch (RuntimeException e) {
+				completed();
+				settle(false, ExpectedFailureException.unwrap(e));
+				return;
+			}
+
+			if(promises.isPromise(result)) {
+				synchronized (this) {
+					current = (Promise) result;
+				}
+				((Promise) result).then(new Callback() {
+					@Override
+					public Object callback(Object input) {
+						completed();
+						settle(true, input);
+						return null;
+					}
+				}, new Callback() {
+					@Override
+					public Object callback(Object input) {
+						completed();
+						settle(false, input);
+						return null;
+					}
+				});
+			} else {
+				completed();
+				settle(!promises.isFailure(result), result);
+			}
+		}
+
+		/**
+		 * Settles unless already settled by cancelling.
+		 */
+		private void settle(boolean ok, Object value) {
+			synchronized (deferred) {
+				if(!deferred.isDone()) {
+					if(ok) {
+						deferred.resolve(value);
+					} else {
+						deferred.reject(value);
+					}
+				}
+			}
+		}
+	}
+
+	public PermitQueue(PromisesService promises) {
+		this.promises = promises;
+	}
+
+	@Override
+	public Promise acquire() {
+		return acquire(0, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public Promise acquire(long timeout, TimeUnit units) {
+		Waiter w = new Waiter(promises.defer());
+		if(timeout > 0) {
+			w.timeout = promises.schedule(w, timeout, units);
+		}
+		waiters.offer(w);
+		drain();
+		return w.deferred.getPromise();
+	}
+
+	@Override
+	public Promise execute(final Callback operation) {
+		return new Execution(operation).start();
+	}
+
+	/**
+	 * @return the number of callers waiting for a permit.
+	 */
+	public int getQueueLength() {
+		return waiters.size();
+	}
+
+	/**
+	 * Hands out permits to waiters until either runs out.
+	 * Only one thread drains at a time; other callers just note that
+	 * another pass is needed.
+	 */
+	protected void drain() {
+		if(wip.getAndIncrement() != 0) {
+			return;
+		}
+
+		int missed = 1;
+		do {
+			Waiter w;
+			while((w = waiters.peek()) != null) {
+				// remove w rather than poll, as it may have been removed on abandoning it
+				if(!w.isWaiting()) {
+					waiters.remove(w);
+				} else if(tryTake()) {
+					waiters.remove(w);
+					if(!w.grant()) {
+						giveBack();
+					}
+				} else {
+					awaitPermit();
+					break;
+				}
+			}
+			missed = wip.addAndGet(-missed);
+		} while(missed != 0);
+	}
+
+	/**
+	 * Takes a permit if one is available.
+	 */
+	protected abstract boolean tryTake();
+
+	/**
+	 * Returns a permit taken for a waiter that gave up in the meantime.
+	 */
+	protected abstract void giveBack();
+
+	/**
+	 * Called when waiters remain but no permit is available.
+	 * Subclasses which regain permits over time should arrange
+	 * for drain to be called again.
+	 */
+	protected void awaitPermit() {
+	}
+
+	/**
+	 * Called once an operation started by execute has settled.
+	 */
+	protected void completed() {
+	}
+}
@@ -0,0 +1,96 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import uk.org.elsie.osgi.promises.PromisesServiceImpl;
+
+/**
+ * Orders continuations by priority on top of the promises executor.
+ * Each task is put in the lane for its priority, and a token is submitted
+ * to the underlying executor in its place. Whichever token runs next
+ * takes the highest priority task waiting, so urgent work overtakes
+ * queued bulk work. To stop a busy high priority lane starving the
+ * others, a lane which has been passed over starvationLimit times while
+ * it had work waiting gets the next turn. A lane's count starts again
+ * whenever a task is taken from it.
+ * @author chris
+ */
+public class PriorityExecutor {
+	private PromisesServiceImpl promises;
+	private List<ConcurrentLinkedQueue<Runnable>> lanes;
+	private AtomicIntegerArray passedOver;
+	private int starvationLimit;
+
+	private Callable<Object> runNext = new Callable<Object>() {
+		@Override
+		public Object call() throws Exception {
+			Runnable task = next();
+			if(task != null) {
+				task.run();
+			}
+			return null;
+		}
+	};
+
+	public PriorityExecutor(PromisesServiceImpl promises, int laneCount, int starvationLimit) {
+		this.promises = promises;
+		this.lanes = new ArrayList<ConcurrentLinkedQueue<Runnable>>(laneCount);
+		for(int i = 0; i < laneCount; i++) {
+			lanes.add(new ConcurrentLinkedQueue<Runnable>());
+		}
+		this.passedOver = new AtomicIntegerArray(laneCount);
+		this.starvationLimit = starvationLimit;
+	}
+
+	public Future<Object> submit(Callable<Object> task, int priority) {
+		FutureTask<Object> future = new FutureTask<Object>(task);
+		lanes.get(Math.max(0, Math.min(priority, lanes.size() - 1))).offer(future);
+		promises.dispatch(runNext);
+		return future;
+	}
+
+	protected Runnable next() {
+		int chosen = -1;
+		for(int i = 0; i < lanes.size(); i++) {
+			if(lanes.get(i).isEmpty()) {
+				continue;
+			}
+			if(chosen < 0) {
+				chosen = i;
+			} else if(passedOver.incrementAndGet(i) >= starvationLimit) {
+				chosen = i;
+				break;
+			}
+		}
+
+		if(chosen >= 0) {
+			Runnable task = poll(chosen);
+			if(task != null) {
+				return task;
+			}
+		}
+
+		// another token took it first; fall back to any waiting task
+		for(int i = 0; i < lanes.size(); i++) {
+			Runnable task = poll(i);
+			if(task != null) {
+				return task;
+			}
+		}
+		return null;
+	}
+
+	private Runnable poll(int lane) {
+		Runnable task = lanes.get(lane).poll();
+		if(task != null) {
+			passedOver.set(lane, 0);
+		}
+		return task;
+	}
+}
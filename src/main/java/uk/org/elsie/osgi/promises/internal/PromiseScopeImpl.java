@@ -0,0 +1,148 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import uk.org.elsie.osgi.promises.Canceller;
+import uk.org.elsie.osgi.promises.Deferred;
+import uk.org.elsie.osgi.promises.FailureCollectorService;
+import uk.org.elsie.osgi.promises.Promise;
+import uk.org.elsie.osgi.promises.PromiseScope;
+import uk.org.elsie.osgi.promises.PromisesServiceImpl;
+
+/**
+ * Keeps the outstanding deferreds created through it, and those which
+ * failed without anyone observing, so that close can cancel the one set
+ * and release the other from the failure collector in a single pass.
+ * @author chris
+ */
+public class PromiseScopeImpl implements PromiseScope {
+	private PromisesServiceImpl promises;
+	private Set<DeferredImpl> outstanding = Collections.newSetFromMap(new IdentityHashMap<DeferredImpl, Boolean>());
+	private List<DeferredImpl> unobserved = new ArrayList<DeferredImpl>();
+	private DeferredImpl closed = null;
+	private boolean released = false;
+
+	public PromiseScopeImpl(PromisesServiceImpl promises) {
+		this.promises = promises;
+	}
+
+	@Override
+	public Deferred defer() {
+		return defer(null);
+	}
+
+	@Override
+	public synchronized Deferred defer(Canceller canceller) {
+		if(closed != null) {
+			throw new IllegalStateException("scope closed");
+		}
+		DeferredImpl d = promises.defer(canceller);
+		d.setScope(this);
+		outstanding.add(d);
+		return d;
+	}
+
+	@Override
+	public Promise delay(long time, TimeUnit units) {
+		return delay(time, units, null);
+	}
+
+	@Override
+	public Promise delay(long time, TimeUnit units, Object input) {
+		return promises.delay(defer(), time, units, input);
+	}
+
+	@Override
+	public Promise close() {
+		List<DeferredImpl> cancelling;
+		synchronized (this) {
+			if(closed != null) {
+				return closed.getPromise();
+			}
+			closed = promises.defer();
+			cancelling = new ArrayList<DeferredImpl>(outstanding);
+		}
+
+		for(DeferredImpl d : cancelling) {
+			d.cancel(true);
+		}
+
+		List<DeferredImpl> failed;
+		synchronized (this) {
+			failed = unobserved;
+			unobserved = new ArrayList<DeferredImpl>();
+			released = true;
+		}
+		release(failed);
+
+		checkClosed();
+		return closed.getPromise();
+	}
+
+	@Override
+	public synchronized boolean isClosed() {
+		return closed != null;
+	}
+
+	@Override
+	public synchronized int getOutstanding() {
+		return outstanding.size();
+	}
+
+	/**
+	 * Called by a deferred in this scope once it has settled.
+	 */
+	void settled(DeferredImpl d) {
+		boolean isReleased;
+		synchronized (this) {
+			outstanding.remove(d);
+			isReleased = released;
+			if(!isReleased && d.hasCollectable()) {
+				unobserved.add(d);
+			}
+		}
+
+		if(isReleased) {
+			release(Collections.singletonList(d));
+			checkClosed();
+		}
+	}
+
+	private void release(List<DeferredImpl> failed) {
+		FailureCollectorService failureCollector = promises.getFailureCollectorService();
+		if(failed.isEmpty() || failureCollector == null) {
+			return;
+		}
+
+		List<Reference<Object>> refs = new ArrayList<Reference<Object>>(failed.size());
+		for(DeferredImpl d : failed) {
+			Reference<Object> ref = d.releaseCollectable();
+			if(ref != null) {
+				refs.add(ref);
+			}
+		}
+		if(!refs.isEmpty()) {
+			failureCollector.collected(refs);
+		}
+	}
+
+	private void checkClosed() {
+		DeferredImpl done;
+		synchronized (this) {
+			done = closed != null && outstanding.isEmpty() ? closed : null;
+		}
+		if(done != null) {
+			synchronized (done) {
+				if(!done.isDone()) {
+					done.resolve(null);
+				}
+			}
+		}
+	}
+}
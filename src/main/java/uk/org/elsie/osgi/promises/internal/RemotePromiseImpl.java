@@ -0,0 +1,171 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import uk.org.elsie.osgi.promises.Callback;
+import uk.org.elsie.osgi.promises.Canceller;
+import uk.org.elsie.osgi.promises.Deferred;
+import uk.org.elsie.osgi.promises.ExpectedFailure;
+import uk.org.elsie.osgi.promises.PromiseClient;
+import uk.org.elsie.osgi.promises.PromisesService;
+import uk.org.elsie.osgi.promises.RemotePromise;
+
+/**
+ * Local stand-in for a promise on a {@link PromiseClient}'s connection,
+ * known to the remote side by its handle. The server sends back every
+ * outcome once, and it is held here until something needs it.
+ * @author chris
+ */
+public class RemotePromiseImpl extends AbstractPromise implements RemotePromise {
+	private PromiseClient client;
+	private PromisesService promises;
+	private int handle;
+	private Deferred deferred;
+	private boolean watched = false;
+	private boolean arrived = false;
+	private boolean ok;
+	private Object value;
+
+	public RemotePromiseImpl(PromiseClient client, PromisesService promises, final int handle) {
+		this.client = client;
+		this.promises = promises;
+		this.handle = handle;
+		this.deferred = promises.defer();
+		this.deferred.setCanceller(new Canceller() {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				cancelled();
+				return true;
+			}
+		});
+	}
+
+	public int getHandle() {
+		return handle;
+	}
+
+	/**
+	 * Records the outcome sent back by the server, and tells the server
+	 * it can drop the handle. Later calls send the value itself instead.
+	 */
+	public void arrived(boolean ok, Object value, boolean release) {
+		synchronized (this) {
+			if(arrived) {
+				return;
+			}
+			this.arrived = true;
+			this.ok = ok;
+			this.value = value;
+			if(release) {
+				client.release(handle);
+			}
+		}
+		settle();
+	}
+
+	private void cancelled() {
+		synchronized (this) {
+			if(arrived) {
+				return;
+			}
+			arrived = true;
+			ok = false;
+			value = ExpectedFailure.CANCELLED;
+			client.cancel(handle);
+		}
+	}
+
+	/**
+	 * Passes the outcome on to the local deferred once someone is waiting
+	 * for it, so unwatched failures don't reach the failure collector.
+	 */
+	private void settle() {
+		boolean ok;
+		Object value;
+		synchronized (this) {
+			if(!watched || !arrived) {
+				return;
+			}
+			ok = this.ok;
+			value = this.value;
+		}
+		synchronized (deferred) {
+			if(!deferred.isDone()) {
+				if(ok) {
+					deferred.resolve(value);
+				} else {
+					deferred.reject(value);
+				}
+			}
+		}
+	}
+
+	private void watch() {
+		synchronized (this) {
+			if(watched) {
+				return;
+			}
+			watched = true;
+		}
+		settle();
+	}
+
+	@Override
+	public synchronized RemotePromise call(String function) {
+		if(arrived) {
+			return client.call(ok, value, function);
+		}
+		return client.call(handle, function);
+	}
+
+	@Override
+	public Object then(Callback callback, Callback errback, Callback progressback, int priority) {
+		watch();
+		return deferred.getPromise().then(callback, errback, progressback, priority);
+	}
+
+	@Override
+	public Object then(Callback callback, Callback errback, Callback progressback) {
+		watch();
+		return deferred.getPromise().then(callback, errback, progressback);
+	}
+
+	@Override
+	public Object then(Callback callback, Callback errback) {
+		return then(callback, errback, null);
+	}
+
+	@Override
+	public Object then(Callback callback) {
+		return then(callback, null, null);
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return deferred.cancel(mayInterruptIfRunning);
+	}
+
+	@Override
+	public Object get() throws InterruptedException, ExecutionException {
+		watch();
+		return promises.waitFor(this);
+	}
+
+	@Override
+	public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		watch();
+		return promises.waitFor(this, timeout, unit);
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return deferred.isCancelled();
+	}
+
+	@Override
+	public boolean isDone() {
+		return deferred.isDone();
+	}
+}
@@ -0,0 +1,209 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.org.elsie.osgi.promises.Backoff;
+import uk.org.elsie.osgi.promises.Callback;
+import uk.org.elsie.osgi.promises.Canceller;
+import uk.org.elsie.osgi.promises.ExpectedFailureException;
+import uk.org.elsie.osgi.promises.Promise;
+import uk.org.elsie.osgi.promises.PromisesService;
+
+/**
+ * Repeatedly calls a promise-producing callback until it succeeds,
+ * the retry predicate declines the failure, or the attempts run out.
+ * Each attempt is passed its attempt number, starting at 1. Retries
+ * are reported to progress callbacks as a {@link Progress}; the first
+ * attempt is not, as it starts before the caller can add one.
+ * Waits between attempts are scheduled directly on the executor
+ * rather than through delayed promises.
+ * @author chris
+ */
+public class Retry implements Canceller {
+	private static Log log = LogFactory.getLog(Retry.class);
+
+	private PromisesService promises;
+	private DeferredImpl deferred;
+	private Callback operation;
+	private int maxAttempts;
+	private Backoff backoff;
+	private Callback retryIf;
+	private int attempts = 0;
+	private boolean cancelled = false;
+	private Promise current = null;
+	private Future<Object> timer = null;
+
+	private Callback succeeded = new Callback() {
+		@Override
+		public Object callback(Object input) {
+			succeeded(input);
+			return null;
+		}
+	};
+
+	private Callback failed = new Callback() {
+		@Override
+		public Object callback(Object input) {
+			failed(input);
+			return null;
+		}
+	};
+
+	private Callable<Object> nextAttempt = new Callable<Object>() {
+		@Override
+		public Object call() throws Exception {
+			attempt();
+			return null;
+		}
+	};
+
+	/**
+	 * @param promises the promises service to run on.
+	 * @param deferred the deferred to settle with the final outcome.
+	 * @param operation called with the attempt number, returns a promise or value.
+	 * @param maxAttempts the maximum number of times to call the operation.
+	 * @param backoff the delay between attempts.
+	 * @param retryIf called with each failure, returns Boolean.TRUE to retry. If null, all failures are retried.
+	 */
+	public Retry(PromisesService promises, DeferredImpl deferred, Callback operation, int maxAttempts, Backoff backoff, Callback retryIf) {
+		if(maxAttempts < 1) {
+			throw new IllegalArgumentException("maxAttempts must be at least 1");
+		}
+		this.promises = promises;
+		this.deferred = deferred;
+		this.operation = operation;
+		this.maxAttempts = maxAttempts;
+		this.backoff = backoff;
+		this.retryIf = retryIf;
+	}
+
+	public Promise start() {
+		deferred.setCanceller(this);
+		attempt();
+		return deferred.getPromise();
+	}
+
+	public synchronized int getAttempts() {
+		return attempts;
+	}
+
+	protected void attempt() {
+		int attempt;
+		synchronized (this) {
+			if(cancelled) {
+				return;
+			}
+			timer = null;
+			attempt = ++attempts;
+		}
+
+		if(attempt > 1) {
+			deferred.progress(new Progress(attempt, maxAttempts));
+		}
+
+		Object value;
+		try {
+			value = operation.callback(attempt);
+		} catch (Exception e) {
+			failed(ExpectedFailureException.unwrap(e));
+			return;
+		}
+
+		if(value != null && promises.isPromise(value)) {
+			Promise p = (Promise) value;
+			boolean abandon;
+			synchronized (this) {
+				abandon = cancelled;
+				if(!abandon) {
+					current = p;
+				}
+			}
+			if(abandon) {
+				p.cancel(true);
+			} else {
+				p.then(succeeded, failed);
+			}
+		} else if(promises.isFailure(value)) {
+			failed(value);
+		} else {
+			succeeded(value);
+		}
+	}
+
+	protected void succeeded(Object value) {
+		synchronized (this) {
+			if(cancelled) {
+				return;
+			}
+			current = null;
+		}
+		synchronized (deferred) {
+			if(!deferred.isDone()) {
+				deferred.resolve(value);
+			}
+		}
+	}
+
+	protected void failed(Object reason) {
+		int attempt;
+		synchronized (this) {
+			if(cancelled) {
+				return;
+			}
+			current = null;
+			attempt = attempts;
+		}
+
+		if(attempt < maxAttempts && shouldRetry(reason)) {
+			long delay = backoff.getDelay(attempt);
+			log.debug("attempt " + attempt + " failed, retrying in " + delay + " " + backoff.getUnits());
+			synchronized (this) {
+				if(!cancelled) {
+					timer = promises.schedule(nextAttempt, delay, backoff.getUnits());
+				}
+			}
+		} else {
+			synchronized (deferred) {
+				if(!deferred.isDone()) {
+					deferred.reject(reason);
+				}
+			}
+		}
+	}
+
+	protected boolean shouldRetry(Object reason) {
+		if(retryIf == null) {
+			return true;
+		}
+		try {
+			return Boolean.TRUE.equals(retryIf.callback(reason));
+		} catch (Exception e) {
+			log.warn("retry predicate failed", e);
+			return false;
+		}
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		Future<Object> t;
+		Promise c;
+		synchronized (this) {
+			cancelled = true;
+			t = timer;
+			c = current;
+			timer = null;
+			current = null;
+		}
+		if(t != null) {
+			t.cancel(false);
+		}
+		if(c != null) {
+			c.cancel(mayInterruptIfRunning);
+		}
+		return true;
+	}
+}
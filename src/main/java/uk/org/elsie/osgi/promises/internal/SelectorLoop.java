@@ -0,0 +1,276 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A single thread running a selector over non-blocking sockets. It reads
+ * whole frames and hands them to the handler, and writes queued output as
+ * the sockets accept it. Frames are handled on the selector thread, in
+ * the order they arrive, so the handler must not block.
+ * @author chris
+ */
+public class SelectorLoop implements Runnable {
+	private static Log log = LogFactory.getLog(SelectorLoop.class);
+
+	public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Receives frames and disconnections from a {@link SelectorLoop}.
+	 */
+	public interface Handler {
+		public void accepted(FrameConnection connection);
+
+		/**
+		 * @param frame the frame body, without its length.
+		 */
+		public void received(FrameConnection connection, ByteBuffer frame);
+
+		public void closed(FrameConnection connection);
+	}
+
+	private Selector selector;
+	private Handler handler;
+	private Thread thread;
+	private volatile boolean running = true;
+	private volatile int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+	private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	public SelectorLoop(String name, Handler handler) throws IOException {
+		this.selector = Selector.open();
+		this.handler = handler;
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Sets the largest frame a peer may send. A connection sending a
+	 * larger one is closed rather than buffering it.
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize = Math.min(maxFrameSize, Integer.MAX_VALUE - 4);
+	}
+
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	public void listen(final ServerSocketChannel server) throws IOException {
+		server.configureBlocking(false);
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					server.register(selector, SelectionKey.OP_ACCEPT);
+				} catch (IOException e) {
+					log.error("Could not listen on " + server, e);
+				}
+			}
+		});
+	}
+
+	public FrameConnection add(SocketChannel channel) throws IOException {
+		configure(channel);
+		final FrameConnection c = new FrameConnection(channel);
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				register(c);
+			}
+		});
+		return c;
+	}
+
+	/**
+	 * Queues data to be written to the connection. Safe to call from any thread.
+	 */
+	public void send(final FrameConnection c, ByteBuffer data) {
+		c.outbound.add(data);
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				if(c.key != null && c.key.isValid()) {
+					c.key.interestOps(c.key.interestOps() | SelectionKey.OP_WRITE);
+				}
+			}
+		});
+	}
+
+	private void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	private void configure(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		// batches are already gathered before writing, so don't hold them back
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+	}
+
+	private void register(FrameConnection c) {
+		try {
+			int ops = SelectionKey.OP_READ;
+			if(!c.outbound.isEmpty()) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			c.key = c.channel.register(selector, ops, c);
+		} catch (IOException e) {
+			log.warn("Could not register connection", e);
+			close(c);
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while(running) {
+				selector.select();
+				Runnable task;
+				while((task = tasks.poll()) != null) {
+					task.run();
+				}
+				for(Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext(); ) {
+					SelectionKey key = i.next();
+					i.remove();
+					try {
+						if(!key.isValid()) {
+							continue;
+						}
+						if(key.isAcceptable()) {
+							accept((ServerSocketChannel) key.channel());
+							continue;
+						}
+						FrameConnection c = (FrameConnection) key.attachment();
+						if(key.isReadable()) {
+							read(c);
+						}
+						if(key.isValid() && key.isWritable()) {
+							write(c);
+						}
+					} catch (IOException e) {
+						log.debug("Connection failed: " + e);
+						if(key.attachment() != null) {
+							close((FrameConnection) key.attachment());
+						}
+					} catch (RuntimeException e) {
+						log.error("Error handling connection", e);
+						if(key.attachment() != null) {
+							close((FrameConnection) key.attachment());
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			log.error("Selector failed", e);
+		} finally {
+			List<FrameConnection> open = new ArrayList<FrameConnection>();
+			for(SelectionKey key : selector.keys()) {
+				if(key.attachment() != null) {
+					open.add((FrameConnection) key.attachment());
+				} else {
+					try {
+						key.channel().close();
+					} catch (IOException e) {
+					}
+				}
+			}
+			for(FrameConnection c : open) {
+				close(c);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void accept(ServerSocketChannel server) throws IOException {
+		SocketChannel channel = server.accept();
+		if(channel == null) {
+			return;
+		}
+		configure(channel);
+		FrameConnection c = new FrameConnection(channel);
+		handler.accepted(c);
+		register(c);
+	}
+
+	private void read(FrameConnection c) throws IOException {
+		int n = c.channel.read(c.inbound);
+		if(n < 0) {
+			close(c);
+			return;
+		}
+		ByteBuffer in = c.inbound;
+		in.flip();
+		while(in.remaining() >= 4) {
+			int length = in.getInt(in.position());
+			if(length < 0 || length > maxFrameSize) {
+				throw new IOException("Bad frame length " + length + ", limit is " + maxFrameSize);
+			}
+			if(in.remaining() < 4 + length) {
+				if(4 + length > in.capacity()) {
+					ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+					bigger.put(in);
+					bigger.flip();
+					c.inbound = in = bigger;
+				}
+				break;
+			}
+			in.position(in.position() + 4);
+			ByteBuffer frame = in.slice();
+			frame.limit(length);
+			in.position(in.position() + length);
+			handler.received(c, frame);
+		}
+		in.compact();
+	}
+
+	private void write(FrameConnection c) throws IOException {
+		ByteBuffer b;
+		while((b = c.outbound.peek()) != null) {
+			c.channel.write(b);
+			if(b.hasRemaining()) {
+				return;
+			}
+			c.outbound.poll();
+		}
+		c.key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void close(FrameConnection c) {
+		if(c.closed) {
+			return;
+		}
+		c.closed = true;
+		if(c.key != null) {
+			c.key.cancel();
+		}
+		try {
+			c.channel.close();
+		} catch (IOException e) {
+		}
+		handler.closed(c);
+	}
+}
@@ -0,0 +1,66 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.org.elsie.osgi.promises.Bulkhead;
+import uk.org.elsie.osgi.promises.PromisesService;
+
+/**
+ * Counting semaphore bulkhead. Permits given back by release are handed
+ * straight on to the next waiter.
+ * @author chris
+ */
+public class SemaphoreBulkhead extends PermitQueue implements Bulkhead {
+	private int maxConcurrent;
+	private AtomicInteger available;
+
+	public SemaphoreBulkhead(PromisesService promises, int maxConcurrent) {
+		super(promises);
+		if(maxConcurrent < 1) {
+			throw new IllegalArgumentException("maxConcurrent must be at least 1");
+		}
+		this.maxConcurrent = maxConcurrent;
+		this.available = new AtomicInteger(maxConcurrent);
+	}
+
+	@Override
+	public void release() {
+		if(available.incrementAndGet() > maxConcurrent) {
+			available.decrementAndGet();
+			throw new IllegalStateException("released more permits than were acquired");
+		}
+		drain();
+	}
+
+	@Override
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	@Override
+	public int getAvailablePermits() {
+		return available.get();
+	}
+
+	@Override
+	protected boolean tryTake() {
+		int n;
+		do {
+			n = available.get();
+			if(n == 0) {
+				return false;
+			}
+		} while(!available.compareAndSet(n, n - 1));
+		return true;
+	}
+
+	@Override
+	protected void giveBack() {
+		available.incrementAndGet();
+	}
+
+	@Override
+	protected void completed() {
+		release();
+	}
+}
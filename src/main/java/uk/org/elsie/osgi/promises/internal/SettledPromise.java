@@ -0,0 +1,128 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.lang.ref.Reference;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import uk.org.elsie.osgi.promises.Callback;
+import uk.org.elsie.osgi.promises.ExpectedFailure;
+import uk.org.elsie.osgi.promises.FailureCollectorService;
+import uk.org.elsie.osgi.promises.Priority;
+import uk.org.elsie.osgi.promises.PromisesServiceImpl;
+
+/**
+ * A promise whose outcome is known when it is created. It is immutable
+ * and takes no locks: then schedules the callback straight away, and a
+ * missing callback returns this promise itself, so it can be shared.
+ * A rejected one is registered with the failure collector if no errback
+ * has been added by the time the executor gets round to checking, as a
+ * rejected deferred would be. The checks are batched by
+ * {@link UnobservedRejections}.
+ * @author chris
+ */
+public class SettledPromise extends AbstractPromise {
+	private PromisesServiceImpl promises;
+	private Object value;
+	private boolean isError;
+	private AtomicReference<Object> collectable = null;
+
+	private static final Object UNOBSERVED = new Object();
+	private static final Object OBSERVED = new Object();
+
+	public SettledPromise(PromisesServiceImpl promises, Object value, boolean isError) {
+		this.promises = promises;
+		this.value = value;
+		this.isError = isError;
+
+		if(isError && !ExpectedFailure.isExpected(value) && promises.getFailureCollectorService() != null) {
+			// only pay for recording the failure if no errback is added straight away
+			collectable = new AtomicReference<Object>(UNOBSERVED);
+			promises.getUnobservedRejections().add(this);
+		}
+	}
+
+	void track() {
+		FailureCollectorService failureCollector = promises.getFailureCollectorService();
+		if(collectable.get() != UNOBSERVED || failureCollector == null) {
+			return;
+		}
+		Reference<Object> ref = failureCollector.failed(value);
+		if(ref != null && !collectable.compareAndSet(UNOBSERVED, ref)) {
+			// an errback was added meanwhile
+			failureCollector.collected(ref);
+		}
+	}
+
+	public Object getValue() {
+		return value;
+	}
+
+	public boolean isError() {
+		return isError;
+	}
+
+	@Override
+	public Object then(Callback callback, Callback errback, Callback progressback) {
+		return then(callback, errback, progressback, Priority.NORMAL);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Object then(Callback callback, Callback errback, Callback progressback, int priority) {
+		Callback cb = isError ? errback : callback;
+		if(cb == null) {
+			return this;
+		}
+
+		if(collectable != null) {
+			Object ref = collectable.getAndSet(OBSERVED);
+			FailureCollectorService failureCollector = promises.getFailureCollectorService();
+			if(ref instanceof Reference && failureCollector != null) {
+				failureCollector.collected((Reference<Object>) ref);
+			}
+		}
+
+		DeferredImpl d = promises.defer();
+		d.setPriority(priority);
+		promises.submit(new Continuation(promises, cb, value, d), priority);
+		return d.getPromise();
+	}
+
+	@Override
+	public Object then(Callback callback, Callback errback) {
+		return then(callback, errback, null);
+	}
+
+	@Override
+	public Object then(Callback callback) {
+		return then(callback, null, null);
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public Object get() throws InterruptedException, ExecutionException {
+		return value;
+	}
+
+	@Override
+	public Object get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		return value;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return true;
+	}
+}
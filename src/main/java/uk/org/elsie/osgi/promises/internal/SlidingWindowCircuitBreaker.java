@@ -0,0 +1,373 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.org.elsie.osgi.promises.Callback;
+import uk.org.elsie.osgi.promises.Canceller;
+import uk.org.elsie.osgi.promises.CircuitBreaker;
+import uk.org.elsie.osgi.promises.Deferred;
+import uk.org.elsie.osgi.promises.ExpectedFailure;
+import uk.org.elsie.osgi.promises.ExpectedFailureException;
+import uk.org.elsie.osgi.promises.Failure;
+import uk.org.elsie.osgi.promises.Promise;
+import uk.org.elsie.osgi.promises.PromisesService;
+
+/**
+ * Circuit breaker over a count-based sliding window of the most recent
+ * call outcomes. A call counts as slow if it settles after the slow call
+ * threshold, whether it succeeded or not.
+ * Each call is tagged with the generation of the state it was let
+ * through in, which changes whenever the breaker opens, half-opens or
+ * closes, so only calls admitted in the current state are counted.
+ * @author chris
+ */
+public class SlidingWindowCircuitBreaker implements CircuitBreaker {
+	private static Log log = LogFactory.getLog(SlidingWindowCircuitBreaker.class);
+
+	private final Failure openFailure = new ExpectedFailure("circuit open");
+	private volatile Promise openRejection = null;
+	private PromisesService promises;
+	private double failureRateThreshold;
+	private long openDuration;
+	private TimeUnit openUnits;
+	private int minimumCalls;
+	private long slowCallNanos = Long.MAX_VALUE;
+	private double slowCallRateThreshold = 1.0;
+	private int halfOpenCalls = 1;
+	private long probeTimeout;
+	private TimeUnit probeUnits;
+
+	private boolean[] failed;
+	private boolean[] slow;
+	private int next = 0;
+	private int count = 0;
+	private int failures = 0;
+	private int slowCalls = 0;
+
+	private volatile State state = State.CLOSED;
+	private int generation = 0;
+	private int halfOpenStarted = 0;
+	private int halfOpenSucceeded = 0;
+
+	private Callable<Object> halfOpen = new Callable<Object>() {
+		@Override
+		public Object call() throws Exception {
+			halfOpen();
+			return null;
+		}
+	};
+
+	/**
+	 * A call let through the breaker, and the generation it was let through in.
+	 */
+	private static class Call {
+		private final int generation;
+		private final boolean probe;
+		private final long start = System.nanoTime();
+		private boolean recorded = false;
+
+		public Call(int generation, boolean probe) {
+			this.generation = generation;
+			this.probe = probe;
+		}
+	}
+
+	public SlidingWindowCircuitBreaker(PromisesService promises, int windowSize, double failureRateThreshold, long openDuration, TimeUnit units) {
+		if(windowSize < 1) {
+			throw new IllegalArgumentException("windowSize must be at least 1");
+		}
+		checkRate("failureRateThreshold", failureRateThreshold);
+		this.promises = promises;
+		this.failureRateThreshold = failureRateThreshold;
+		this.openDuration = openDuration;
+		this.openUnits = units;
+		this.probeTimeout = openDuration;
+		this.probeUnits = units;
+		this.minimumCalls = windowSize;
+		this.failed = new boolean[windowSize];
+		this.slow = new boolean[windowSize];
+	}
+
+	private static void checkRate(String name, double rate) {
+		if(!(rate > 0 && rate <= 1)) {
+			throw new IllegalArgumentException(name + " must be greater than 0 and at most 1");
+		}
+	}
+
+	@Override
+	public Promise execute(Callback operation) {
+		final Call call = tryStart();
+		if(call == null) {
+			return getOpenRejection();
+		}
+
+		Object result;
+		try {
+			result = operation.callback(null);
+		} catch (RuntimeException e) {
+			Object reason = ExpectedFailureException.unwrap(e);
+			recordFailure(call, reason);
+			return promises.reject(reason);
+		}
+
+		if(promises.isPromise(result)) {
+			final Promise p = (Promise) result;
+			final Deferred d = promises.defer();
+			d.setCanceller(new Canceller() {
+				@Override
+				public boolean cancel(boolean mayInterruptIfRunning) {
+					return p.cancel(mayInterruptIfRunning);
+				}
+			});
+			p.then(new Callback() {
+				@Override
+				public Object callback(Object input) {
+					record(call, true);
+					d.resolve(input);
+					return null;
+				}
+			}, new Callback() {
+				@Override
+				public Object callback(Object input) {
+					recordFailure(call, input);
+					synchronized (d) {
+						if(!d.isDone()) {
+							d.reject(input);
+						}
+					}
+					return null;
+				}
+			});
+			if(call.probe) {
+				watchProbe(call);
+			}
+			return d.getPromise();
+		} else if(promises.isFailure(result)) {
+			recordFailure(call, result);
+			return promises.reject(result);
+		} else {
+			record(call, true);
+			return promises.ref(result);
+		}
+	}
+
+	/**
+	 * The rejection returned while the breaker is open is shared by every
+	 * refused call. It is made when first needed rather than up front, so
+	 * building a breaker never rejects anything.
+	 */
+	private Promise getOpenRejection() {
+		Promise p = openRejection;
+		if(p == null) {
+			p = promises.reject(openFailure);
+			openRejection = p;
+		}
+		return p;
+	}
+
+	/**
+	 * Counts a probe which has not settled within the probe timeout as
+	 * failed, so one hung call cannot hold the breaker half-open.
+	 */
+	private void watchProbe(final Call call) {
+		long timeout;
+		TimeUnit units;
+		synchronized (this) {
+			if(call.recorded || call.generation != generation) {
+				return;
+			}
+			timeout = probeTimeout;
+			units = probeUnits;
+		}
+		promises.schedule(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				synchronized (SlidingWindowCircuitBreaker.this) {
+					if(!call.recorded && call.generation == generation) {
+						log.warn("Circuit breaker probe timed out");
+					}
+				}
+				record(call, false);
+				return null;
+			}
+		}, timeout, units);
+	}
+
+	@Override
+	public Callback wrap(final Callback operation) {
+		return new Callback() {
+			@Override
+			public Object callback(final Object input) {
+				return execute(new Callback() {
+					@Override
+					public Object callback(Object ignored) {
+						return operation.callback(input);
+					}
+				});
+			}
+		};
+	}
+
+	@Override
+	public State getState() {
+		return state;
+	}
+
+	@Override
+	public Failure getOpenFailure() {
+		return openFailure;
+	}
+
+	@Override
+	public synchronized void setMinimumCalls(int minimumCalls) {
+		this.minimumCalls = Math.max(1, Math.min(minimumCalls, failed.length));
+	}
+
+	@Override
+	public synchronized void setSlowCallThreshold(long duration, TimeUnit units) {
+		this.slowCallNanos = units.toNanos(duration);
+	}
+
+	@Override
+	public synchronized void setSlowCallRateThreshold(double rate) {
+		checkRate("slowCallRateThreshold", rate);
+		this.slowCallRateThreshold = rate;
+	}
+
+	@Override
+	public synchronized void setHalfOpenCalls(int halfOpenCalls) {
+		this.halfOpenCalls = Math.max(1, halfOpenCalls);
+	}
+
+	@Override
+	public synchronized void setProbeTimeout(long timeout, TimeUnit units) {
+		this.probeTimeout = timeout;
+		this.probeUnits = units;
+	}
+
+	/**
+	 * @return the admitted call, or null if the breaker refuses it.
+	 */
+	protected Call tryStart() {
+		if(state == State.OPEN) {
+			return null;
+		}
+		synchronized (this) {
+			switch(state) {
+			case CLOSED:
+				return new Call(generation, false);
+			case HALF_OPEN:
+				if(halfOpenStarted < halfOpenCalls) {
+					halfOpenStarted++;
+					return new Call(generation, true);
+				}
+				return null;
+			default:
+				return null;
+			}
+		}
+	}
+
+	protected synchronized void record(Call call, boolean succeeded) {
+		if(call.recorded) {
+			return;
+		}
+		call.recorded = true;
+		if(call.generation != generation) {
+			// admitted before the breaker last changed state
+			return;
+		}
+		boolean isSlow = System.nanoTime() - call.start > slowCallNanos;
+
+		switch(state) {
+		case CLOSED:
+			if(count == failed.length) {
+				if(failed[next]) {
+					failures--;
+				}
+				if(slow[next]) {
+					slowCalls--;
+				}
+			} else {
+				count++;
+			}
+			failed[next] = !succeeded;
+			slow[next] = isSlow;
+			if(!succeeded) {
+				failures++;
+			}
+			if(isSlow) {
+				slowCalls++;
+			}
+			next = (next + 1) % failed.length;
+
+			if(count >= minimumCalls
+					&& ((double) failures / count >= failureRateThreshold
+						|| (double) slowCalls / count >= slowCallRateThreshold)) {
+				trip();
+			}
+			break;
+		case HALF_OPEN:
+			if(!succeeded || isSlow) {
+				trip();
+			} else if(++halfOpenSucceeded >= halfOpenCalls) {
+				log.info("Closing circuit breaker");
+				reset();
+				generation++;
+				state = State.CLOSED;
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Counts a failed call, unless it was cancelled. A call cancelled by
+	 * its caller, say because a hedged request won or it timed out, says
+	 * nothing about what it called, so it is left out of the window and
+	 * a cancelled probe frees its place for another.
+	 */
+	protected void recordFailure(Call call, Object reason) {
+		if(reason != ExpectedFailure.CANCELLED) {
+			record(call, false);
+			return;
+		}
+		synchronized (this) {
+			if(call.recorded) {
+				return;
+			}
+			call.recorded = true;
+			if(call.probe && call.generation == generation && state == State.HALF_OPEN) {
+				halfOpenStarted--;
+			}
+		}
+	}
+
+	private void trip() {
+		log.warn("Opening circuit breaker for " + openDuration + " " + openUnits);
+		generation++;
+		state = State.OPEN;
+		promises.schedule(halfOpen, openDuration, openUnits);
+	}
+
+	private synchronized void halfOpen() {
+		if(state == State.OPEN) {
+			halfOpenStarted = 0;
+			halfOpenSucceeded = 0;
+			generation++;
+			state = State.HALF_OPEN;
+		}
+	}
+
+	private void reset() {
+		next = count = failures = slowCalls = 0;
+		for(int i = 0; i < failed.length; i++) {
+			failed[i] = slow[i] = false;
+		}
+	}
+}
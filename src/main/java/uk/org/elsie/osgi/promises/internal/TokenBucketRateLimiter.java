@@ -0,0 +1,82 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import uk.org.elsie.osgi.promises.PromisesService;
+import uk.org.elsie.osgi.promises.RateLimiter;
+
+/**
+ * Token bucket rate limiter. Tokens are topped up lazily from the elapsed
+ * time whenever the queue is drained, and while waiters remain a single
+ * timer is scheduled for when the next token is due.
+ * @author chris
+ */
+public class TokenBucketRateLimiter extends PermitQueue implements RateLimiter {
+	private double permitsPerSecond;
+	private int burst;
+	private double nanosPerPermit;
+	private double tokens;
+	private long lastRefill;
+	private AtomicBoolean timerPending = new AtomicBoolean(false);
+
+	private Callable<Object> refill = new Callable<Object>() {
+		@Override
+		public Object call() throws Exception {
+			timerPending.set(false);
+			drain();
+			return null;
+		}
+	};
+
+	public TokenBucketRateLimiter(PromisesService promises, double permitsPerSecond, int burst) {
+		super(promises);
+		if(permitsPerSecond <= 0) {
+			throw new IllegalArgumentException("permitsPerSecond must be positive");
+		}
+		if(burst < 1) {
+			throw new IllegalArgumentException("burst must be at least 1");
+		}
+		this.permitsPerSecond = permitsPerSecond;
+		this.burst = burst;
+		this.nanosPerPermit = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+		this.tokens = burst;
+		this.lastRefill = System.nanoTime();
+	}
+
+	@Override
+	public double getPermitsPerSecond() {
+		return permitsPerSecond;
+	}
+
+	@Override
+	public int getBurst() {
+		return burst;
+	}
+
+	@Override
+	protected boolean tryTake() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - lastRefill) / nanosPerPermit);
+		lastRefill = now;
+		if(tokens >= 1.0) {
+			tokens -= 1.0;
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	protected void giveBack() {
+		tokens = Math.min(burst, tokens + 1.0);
+	}
+
+	@Override
+	protected void awaitPermit() {
+		if(timerPending.compareAndSet(false, true)) {
+			long wait = (long) Math.ceil((1.0 - tokens) * nanosPerPermit);
+			promises.schedule(refill, wait, TimeUnit.NANOSECONDS);
+		}
+	}
+}
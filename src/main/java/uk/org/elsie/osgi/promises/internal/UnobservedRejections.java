@@ -0,0 +1,47 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import uk.org.elsie.osgi.promises.PromisesServiceImpl;
+
+/**
+ * Settled rejections waiting to be checked for an errback. One task
+ * checks all those queued since it was submitted, so a rejection costs
+ * a queue add rather than a task of its own.
+ * @author chris
+ */
+public class UnobservedRejections implements Callable<Object> {
+	private PromisesServiceImpl promises;
+	private ConcurrentLinkedQueue<SettledPromise> queue = new ConcurrentLinkedQueue<SettledPromise>();
+	private AtomicBoolean submitted = new AtomicBoolean(false);
+
+	public UnobservedRejections(PromisesServiceImpl promises) {
+		this.promises = promises;
+	}
+
+	public void add(SettledPromise p) {
+		queue.add(p);
+		if(submitted.compareAndSet(false, true)) {
+			try {
+				promises.submit(this);
+			} catch (RejectedExecutionException e) {
+				submitted.set(false);
+				throw e;
+			}
+		}
+	}
+
+	@Override
+	public Object call() throws Exception {
+		// cleared first, so anything added while checking gets another task
+		submitted.set(false);
+		SettledPromise p;
+		while((p = queue.poll()) != null) {
+			p.track();
+		}
+		return null;
+	}
+}
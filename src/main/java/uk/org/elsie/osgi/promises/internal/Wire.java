@@ -0,0 +1,232 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.org.elsie.osgi.promises.CallbackFailure;
+import uk.org.elsie.osgi.promises.ExpectedFailure;
+import uk.org.elsie.osgi.promises.Failure;
+
+/**
+ * Compact binary encoding for remote promise messages. Integers and
+ * lengths are zigzag varints, so small handles and values take a byte.
+ * Values are tagged; common types have their own tags, failures are sent
+ * as their message, and anything else is sent as its toString. Java
+ * serialization is deliberately not used, as reading it from an
+ * unauthenticated socket would let the peer instantiate arbitrary classes.
+ * @author chris
+ */
+public class Wire {
+	public static final byte IMPORT = 1;
+	public static final byte CALL = 2;
+	public static final byte CALL_VALUE = 3;
+	public static final byte CANCEL = 4;
+	public static final byte RESULT = 5;
+	public static final byte RELEASE = 6;
+
+	private static final byte NULL = 0;
+	private static final byte TRUE = 1;
+	private static final byte FALSE = 2;
+	private static final byte INT = 3;
+	private static final byte LONG = 4;
+	private static final byte DOUBLE = 5;
+	private static final byte STRING = 6;
+	private static final byte BYTES = 7;
+	private static final byte LIST = 8;
+	private static final byte MAP = 9;
+	private static final byte FAILURE = 10;
+	private static final byte EXPECTED_FAILURE = 11;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private Wire() {
+	}
+
+	/**
+	 * Starts a frame; finish it with endFrame.
+	 * @return the offset of the frame's length, to pass to endFrame.
+	 */
+	public static int startFrame(Output out, byte op) {
+		int start = out.size();
+		out.write(0);
+		out.write(0);
+		out.write(0);
+		out.write(0);
+		out.write(op);
+		return start;
+	}
+
+	public static void endFrame(Output out, int start) {
+		out.setInt(start, out.size() - start - 4);
+	}
+
+	public static void writeVarint(Output out, long v) {
+		long z = (v << 1) ^ (v >> 63);
+		while((z & ~0x7fL) != 0) {
+			out.write((int) ((z & 0x7f) | 0x80));
+			z >>>= 7;
+		}
+		out.write((int) z);
+	}
+
+	public static long readVarint(ByteBuffer in) {
+		long z = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in.get();
+			z |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while((b & 0x80) != 0);
+		return (z >>> 1) ^ -(z & 1);
+	}
+
+	public static void writeString(Output out, String s) {
+		byte[] b = s.getBytes(UTF8);
+		writeVarint(out, b.length);
+		out.write(b, 0, b.length);
+	}
+
+	/**
+	 * Reads a length or count sent by the peer, which can be no more
+	 * than the bytes left in the frame, as each byte or element takes at
+	 * least one. Checking before allocating stops a peer forcing large
+	 * allocations with a short frame.
+	 * @throws IllegalArgumentException if the length is negative or too long.
+	 */
+	public static int readLength(ByteBuffer in) {
+		long n = readVarint(in);
+		if(n < 0 || n > in.remaining()) {
+			throw new IllegalArgumentException("Bad length " + n + " with " + in.remaining() + " bytes left");
+		}
+		return (int) n;
+	}
+
+	public static String readString(ByteBuffer in) {
+		byte[] b = new byte[readLength(in)];
+		in.get(b);
+		return new String(b, UTF8);
+	}
+
+	public static void writeValue(Output out, Object value) {
+		if(value == null) {
+			out.write(NULL);
+		} else if(value instanceof Boolean) {
+			out.write((Boolean) value ? TRUE : FALSE);
+		} else if(value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			out.write(INT);
+			writeVarint(out, ((Number) value).intValue());
+		} else if(value instanceof Long) {
+			out.write(LONG);
+			writeVarint(out, (Long) value);
+		} else if(value instanceof Double || value instanceof Float) {
+			out.write(DOUBLE);
+			long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+			for(int i = 56; i >= 0; i -= 8) {
+				out.write((int) (bits >>> i));
+			}
+		} else if(value instanceof String) {
+			out.write(STRING);
+			writeString(out, (String) value);
+		} else if(value instanceof byte[]) {
+			byte[] b = (byte[]) value;
+			out.write(BYTES);
+			writeVarint(out, b.length);
+			out.write(b, 0, b.length);
+		} else if(value instanceof List) {
+			List<?> l = (List<?>) value;
+			out.write(LIST);
+			writeVarint(out, l.size());
+			for(Object o : l) {
+				writeValue(out, o);
+			}
+		} else if(value instanceof Map) {
+			Map<?, ?> m = (Map<?, ?>) value;
+			out.write(MAP);
+			writeVarint(out, m.size());
+			for(Map.Entry<?, ?> e : m.entrySet()) {
+				writeValue(out, e.getKey());
+				writeValue(out, e.getValue());
+			}
+		} else if(value instanceof Failure || value instanceof Throwable) {
+			out.write(ExpectedFailure.isExpected(value) ? EXPECTED_FAILURE : FAILURE);
+			Object message = value instanceof Failure ? ((Failure) value).getMessage() : value.toString();
+			writeString(out, String.valueOf(message));
+		} else {
+			out.write(STRING);
+			writeString(out, value.toString());
+		}
+	}
+
+	public static Object readValue(ByteBuffer in) {
+		byte tag = in.get();
+		switch(tag) {
+		case NULL:
+			return null;
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case INT:
+			return (int) readVarint(in);
+		case LONG:
+			return readVarint(in);
+		case DOUBLE:
+			return Double.longBitsToDouble(in.getLong());
+		case STRING:
+			return readString(in);
+		case BYTES: {
+			byte[] b = new byte[readLength(in)];
+			in.get(b);
+			return b;
+		}
+		case LIST: {
+			int n = readLength(in);
+			List<Object> l = new ArrayList<Object>(n);
+			for(int i = 0; i < n; i++) {
+				l.add(readValue(in));
+			}
+			return l;
+		}
+		case MAP: {
+			int n = readLength(in);
+			Map<Object, Object> m = new LinkedHashMap<Object, Object>();
+			for(int i = 0; i < n; i++) {
+				m.put(readValue(in), readValue(in));
+			}
+			return m;
+		}
+		case FAILURE:
+			return new CallbackFailure(readString(in));
+		case EXPECTED_FAILURE:
+			return new ExpectedFailure(readString(in));
+		default:
+			throw new IllegalArgumentException("Unknown value tag " + tag);
+		}
+	}
+
+	/**
+	 * Growable output buffer which can patch in frame lengths.
+	 */
+	public static class Output extends ByteArrayOutputStream {
+		public Output() {
+			super(256);
+		}
+
+		public void setInt(int offset, int v) {
+			buf[offset] = (byte) (v >>> 24);
+			buf[offset + 1] = (byte) (v >>> 16);
+			buf[offset + 2] = (byte) (v >>> 8);
+			buf[offset + 3] = (byte) v;
+		}
+
+		public ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package uk.org.elsie.osgi.promises;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncChannelsTest extends PromisesFixture {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private AsyncChannels channels;
+	private File file;
+	private AsynchronousFileChannel fileChannel;
+
+	@Before
+	public void setUp() throws Exception {
+		channels = new AsyncChannels(promises, 16, 4);
+		file = File.createTempFile("channels", "");
+		fileChannel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		fileChannel.close();
+		file.delete();
+	}
+
+	private Object await(Promise p) throws Exception {
+		Outcome o = Outcome.of(promises, p);
+		assertTrue(String.valueOf(o.value), o.resolved);
+		return o.value;
+	}
+
+	private String text(ByteBuffer b) {
+		byte[] bytes = new byte[b.remaining()];
+		b.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	@Test
+	public void fileReadsAndWritesCountInLongs() throws Exception {
+		assertEquals(10L, await(channels.write(fileChannel, ByteBuffer.wrap("0123456789".getBytes(UTF8)), 0)));
+
+		ByteBuffer dst = ByteBuffer.allocate(4);
+		assertEquals(4L, await(channels.read(fileChannel, dst, 2)));
+		dst.flip();
+		assertEquals("2345", text(dst));
+
+		ByteBuffer[] dsts = { ByteBuffer.allocate(6), ByteBuffer.allocate(6) };
+		assertEquals(10L, await(channels.read(fileChannel, dsts, 0)));
+		assertEquals(-1L, await(channels.read(fileChannel, new ByteBuffer[] { ByteBuffer.allocate(1) }, 10)));
+		assertEquals(-1L, await(channels.read(fileChannel, ByteBuffer.allocate(1), 10)));
+	}
+
+	@Test
+	public void pooledFileReadResolvesWithFlippedBuffer() throws Exception {
+		await(channels.write(fileChannel, ByteBuffer.wrap("pooled".getBytes(UTF8)), 0));
+		ByteBuffer b = (ByteBuffer) await(channels.read(fileChannel, 0));
+		assertEquals("pooled", text(b));
+		channels.releaseBuffer(b);
+		assertSame(b, channels.acquireBuffer());
+	}
+
+	@Test
+	public void releasingTwiceDoesNotShareABuffer() throws Exception {
+		ByteBuffer b = channels.acquireBuffer();
+		channels.releaseBuffer(b);
+		channels.releaseBuffer(b);
+		assertNotSame(channels.acquireBuffer(), channels.acquireBuffer());
+	}
+
+	@Test
+	public void failedPooledReadGivesItsBufferBack() throws Exception {
+		ByteBuffer spare = channels.acquireBuffer();
+		fileChannel.close();
+		Outcome o = Outcome.of(promises, channels.read(fileChannel, 0));
+		assertFalse(o.resolved);
+		ByteBuffer returned = channels.acquireBuffer();
+		assertNotSame(spare, returned);
+		assertNotSame(returned, channels.acquireBuffer());
+	}
+
+	@Test
+	public void socketRoundTrip() throws Exception {
+		AsynchronousServerSocketChannel server = AsynchronousServerSocketChannel.open();
+		AsynchronousSocketChannel client = AsynchronousSocketChannel.open();
+		try {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			assertSame(client, await(channels.connect(client, server.getLocalAddress())));
+			AsynchronousSocketChannel accepted = server.accept().get(5, TimeUnit.SECONDS);
+			try {
+				assertEquals(5L, await(channels.write(client, ByteBuffer.wrap("hello".getBytes(UTF8)))));
+				ByteBuffer b = (ByteBuffer) await(channels.read(accepted));
+				assertEquals("hello", text(b));
+				channels.releaseBuffer(b);
+
+				ByteBuffer[] srcs = { ByteBuffer.wrap("ab".getBytes(UTF8)), ByteBuffer.wrap("cd".getBytes(UTF8)) };
+				assertEquals(4L, await(channels.write(client, srcs)));
+				ByteBuffer dst = ByteBuffer.allocate(4);
+				long read = 0;
+				while(read < 4) {
+					read += (Long) await(channels.read(accepted, new ByteBuffer[] { dst }));
+				}
+				dst.flip();
+				assertEquals("abcd", text(dst));
+			} finally {
+				accepted.close();
+			}
+		} finally {
+			client.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void cancellingPendingReadClosesChannel() throws Exception {
+		AsynchronousServerSocketChannel server = AsynchronousServerSocketChannel.open();
+		AsynchronousSocketChannel client = AsynchronousSocketChannel.open();
+		try {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			await(channels.connect(client, server.getLocalAddress()));
+			AsynchronousSocketChannel accepted = server.accept().get(5, TimeUnit.SECONDS);
+			try {
+				Promise p = channels.read(client, ByteBuffer.allocate(4));
+				p.cancel(false);
+				assertFalse(p.isDone());
+				assertTrue(client.isOpen());
+				assertTrue(p.cancel(true));
+				assertFalse(client.isOpen());
+				Outcome o = Outcome.of(promises, p);
+				assertFalse(o.resolved);
+				assertSame(ExpectedFailure.CANCELLED, o.value);
+			} finally {
+				accepted.close();
+			}
+		} finally {
+			client.close();
+			server.close();
+		}
+	}
+}
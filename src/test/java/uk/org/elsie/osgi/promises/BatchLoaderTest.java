@@ -0,0 +1,97 @@
+package uk.org.elsie.osgi.promises;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchLoaderTest extends PromisesFixture {
+	private List<List<Object>> batches;
+
+	@Before
+	public void setUp() {
+		batches = Collections.synchronizedList(new ArrayList<List<Object>>());
+	}
+
+	/**
+	 * Upper-cases each key, recording the batches it was called with.
+	 */
+	private Callback upper = new Callback() {
+		@SuppressWarnings("unchecked")
+		@Override
+		public Object callback(Object input) {
+			List<Object> keys = (List<Object>) input;
+			batches.add(keys);
+			List<Object> results = new ArrayList<Object>();
+			for(Object key : keys) {
+				results.add(((String) key).toUpperCase());
+			}
+			return promises.ref(results);
+		}
+	};
+
+	@Test
+	public void keysInOneWindowShareABatch() throws Exception {
+		BatchLoader loader = new BatchLoader(promises, upper, 10, 20, TimeUnit.MILLISECONDS);
+		Promise a = loader.load("a");
+		Promise b = loader.load("b");
+		Promise again = loader.load("a");
+		assertEquals("resolved:A", Outcome.of(promises, a).toString());
+		assertEquals("resolved:B", Outcome.of(promises, b).toString());
+		assertEquals("resolved:A", Outcome.of(promises, again).toString());
+		assertEquals(1, batches.size());
+		assertEquals(2, batches.get(0).size());
+	}
+
+	@Test
+	public void fullBatchGoesWithoutWaitingForTheWindow() throws Exception {
+		BatchLoader loader = new BatchLoader(promises, upper, 2, 1, TimeUnit.HOURS);
+		Promise a = loader.load("a");
+		Promise b = loader.load("b");
+		assertEquals("resolved:A", Outcome.of(promises, a).toString());
+		assertEquals("resolved:B", Outcome.of(promises, b).toString());
+	}
+
+	@Test
+	public void mapResultsRejectMissingAndFailedKeys() throws Exception {
+		BatchLoader loader = new BatchLoader(promises, new Callback() {
+			@Override
+			public Object callback(Object input) {
+				Map<Object, Object> results = new HashMap<Object, Object>();
+				results.put("found", "value");
+				results.put("failed", new ExpectedFailure("broken"));
+				return results;
+			}
+		}, 10, 1, TimeUnit.MILLISECONDS);
+		Promise found = loader.load("found");
+		Promise failed = loader.load("failed");
+		Promise missing = loader.load("missing");
+		assertEquals("resolved:value", Outcome.of(promises, found).toString());
+		assertEquals("rejected:broken", Outcome.of(promises, failed).toString());
+		Outcome o = Outcome.of(promises, missing);
+		assertFalse(o.resolved);
+		assertEquals("no result for key missing", ((Failure) o.value).getMessage());
+	}
+
+	@Test
+	public void failedBatchRejectsEveryKey() throws Exception {
+		BatchLoader loader = new BatchLoader(promises, new Callback() {
+			@Override
+			public Object callback(Object input) {
+				return promises.reject(new ExpectedFailure("down"));
+			}
+		}, 10, 1, TimeUnit.MILLISECONDS);
+		Promise a = loader.load("a");
+		Promise b = loader.load("b");
+		assertEquals("rejected:down", Outcome.of(promises, a).toString());
+		assertEquals("rejected:down", Outcome.of(promises, b).toString());
+	}
+}
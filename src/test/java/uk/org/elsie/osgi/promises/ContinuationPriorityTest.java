@@ -0,0 +1,50 @@
+package uk.org.elsie.osgi.promises;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ContinuationPriorityTest extends PromisesFixture {
+	private List<Integer> priorities = Collections.synchronizedList(new ArrayList<Integer>());
+
+	@Override
+	protected PromisesServiceImpl createPromises() {
+		return new PromisesServiceImpl() {
+			@Override
+			public Future<Object> submit(Callable<Object> task, int priority) {
+				priorities.add(priority);
+				return super.submit(task, priority);
+			}
+		};
+	}
+
+	@Test
+	public void nestedPromiseKeepsThePriority() throws Exception {
+		Deferred d = promises.defer();
+		final Deferred inner = promises.defer();
+		Object p = d.getPromise().then(new Callback() {
+			@Override
+			public Object callback(Object input) {
+				return inner.getPromise();
+			}
+		}, null, null, Priority.HIGH);
+		d.resolve("outer");
+		inner.resolve("inner");
+
+		assertEquals("inner", promises.waitFor(p, 5, TimeUnit.SECONDS));
+		assertFalse(priorities.isEmpty());
+		synchronized(priorities) {
+			for(Integer priority : priorities) {
+				assertEquals(Priority.HIGH, priority.intValue());
+			}
+		}
+	}
+}
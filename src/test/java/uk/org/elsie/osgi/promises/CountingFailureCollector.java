@@ -0,0 +1,35 @@
+package uk.org.elsie.osgi.promises;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test failure collector which counts failures rather than logging them.
+ * @author chris
+ */
+public class CountingFailureCollector implements FailureCollectorService {
+	public final AtomicInteger failed = new AtomicInteger();
+	public final AtomicInteger collected = new AtomicInteger();
+
+	@Override
+	public Reference<Object> failed(Object failure) {
+		failed.incrementAndGet();
+		return new WeakReference<Object>(failure);
+	}
+
+	@Override
+	public void collected(Reference<Object> ref) {
+		collected.incrementAndGet();
+	}
+
+	@Override
+	public void collected(Collection<Reference<Object>> refs) {
+		collected.addAndGet(refs.size());
+	}
+
+	public int outstanding() {
+		return failed.get() - collected.get();
+	}
+}
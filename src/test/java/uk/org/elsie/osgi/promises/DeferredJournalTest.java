@@ -0,0 +1,144 @@
+package uk.org.elsie.osgi.promises;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeferredJournalTest extends PromisesFixture {
+	private File directory;
+	private DeferredJournal journal;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("journal", "");
+		directory.delete();
+		journal = promises.openJournal(directory, 1024, 1, TimeUnit.MILLISECONDS);
+	}
+
+	@After
+	public void tearDown() {
+		journal.close();
+		File[] files = directory.listFiles();
+		if(files != null) {
+			for(File f : files) {
+				f.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	private void reopen() throws Exception {
+		promises.waitFor(journal.flush(), 5, TimeUnit.SECONDS);
+		journal.close();
+		journal = promises.openJournal(directory, 1024, 1, TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	public void recoversOutcomesAndPending() throws Exception {
+		journal.defer("resolved").resolve("value");
+		journal.defer("rejected").reject(new CallbackFailure("reason"));
+		journal.defer("pending");
+		reopen();
+
+		Outcome resolved = Outcome.of(promises, journal.get("resolved").getPromise());
+		assertTrue(resolved.resolved);
+		assertEquals("value", resolved.value);
+		Outcome rejected = Outcome.of(promises, journal.get("rejected").getPromise());
+		assertFalse(rejected.resolved);
+		assertEquals("reason", ((Failure) rejected.value).getMessage());
+		assertEquals(1, journal.getPending().size());
+		assertEquals("pending", journal.getPending().iterator().next().getId());
+	}
+
+	@Test
+	public void recoveredRejectionIsNotRaisedAgain() throws Exception {
+		DurableDeferred d = journal.defer("rejected");
+		d.reject(new CallbackFailure("reason"));
+		promises.waitFor(journal.flush(), 5, TimeUnit.SECONDS);
+		for(int i = 0; i < 100 && !d.getPromise().isDone(); i++) {
+			Thread.sleep(5);
+		}
+		int reported = collector.failed.get();
+
+		// replaying the rejection neither throws nor reports it a second time
+		promises.setRejectImmediately(true);
+		reopen();
+		assertEquals(reported, collector.failed.get());
+		Outcome rejected = Outcome.of(promises, journal.get("rejected").getPromise());
+		assertFalse(rejected.resolved);
+		assertEquals("reason", ((Failure) rejected.value).getMessage());
+	}
+
+	@Test
+	public void everySecondSettleThrows() throws Exception {
+		assertSecondSettleThrows(journal.defer("a"), true, true);
+		assertSecondSettleThrows(journal.defer("b"), true, false);
+		assertSecondSettleThrows(journal.defer("c"), false, true);
+		assertSecondSettleThrows(journal.defer("d"), false, false);
+	}
+
+	private void assertSecondSettleThrows(DurableDeferred d, boolean resolveFirst, boolean resolveSecond) throws Exception {
+		settle(d, resolveFirst);
+		try {
+			settle(d, resolveSecond);
+			fail("second settle of " + d.getId() + " was accepted");
+		} catch (RuntimeException e) {
+			assertEquals("already finished", e.getMessage());
+		}
+		assertEquals(resolveFirst, Outcome.of(promises, d.getPromise()).resolved);
+	}
+
+	private void settle(Deferred d, boolean resolve) {
+		if(resolve) {
+			d.resolve("value");
+		} else {
+			d.reject(new ExpectedFailure("reason"));
+		}
+	}
+
+	@Test
+	public void failedSettleLeavesDeferredUnsettled() throws Exception {
+		DurableDeferred d = journal.defer("a");
+		journal.close();
+		for(int i = 0; i < 2; i++) {
+			try {
+				d.resolve("value");
+				fail("settled with the journal closed");
+			} catch (IllegalStateException e) {
+				// not mistaken for a second settle
+			}
+		}
+		assertFalse(d.getPromise().isDone());
+	}
+
+	@Test
+	public void settledEntriesAreDroppedFromSnapshots() throws Exception {
+		DurableDeferred settled = journal.defer("settled");
+		journal.defer("pending");
+		settled.resolve("value");
+		promises.waitFor(settled.getPromise(), 5, TimeUnit.SECONDS);
+
+		// fill the segment so the journal starts a new one
+		for(int i = 0; i < 100; i++) {
+			DurableDeferred filler = journal.defer("filler" + i);
+			journal.forget(filler.getId());
+		}
+		assertNull(journal.get("settled"));
+		assertNotNull(journal.get("pending"));
+
+		reopen();
+		assertNull(journal.get("settled"));
+		assertEquals(1, journal.getPending().size());
+	}
+}
@@ -0,0 +1,61 @@
+package uk.org.elsie.osgi.promises;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Operations which throw an ExpectedFailureException should reject with
+ * the failure it carries, whichever helper runs them.
+ */
+public class ExpectedFailureUnwrapTest extends PromisesFixture {
+	private ThrottleServiceImpl throttles;
+
+	private final ExpectedFailure failure = new ExpectedFailure("expected");
+
+	private Callback throwing = new Callback() {
+		@Override
+		public Object callback(Object input) {
+			throw new ExpectedFailureException(failure);
+		}
+	};
+
+	@Before
+	public void setUp() {
+		throttles = new ThrottleServiceImpl();
+		throttles.setPromisesService(promises);
+	}
+
+	private void assertRejectedWithFailure(Promise p) throws Exception {
+		Outcome o = Outcome.of(promises, p);
+		assertFalse(o.resolved);
+		assertSame(failure, o.value);
+		assertEquals(0, collector.failed.get());
+	}
+
+	@Test
+	public void retry() throws Exception {
+		assertRejectedWithFailure(promises.retry(throwing, 2, new Backoff(1, 1, TimeUnit.MILLISECONDS)));
+	}
+
+	@Test
+	public void bulkhead() throws Exception {
+		assertRejectedWithFailure(throttles.createBulkhead(1).execute(throwing));
+	}
+
+	@Test
+	public void circuitBreaker() throws Exception {
+		assertRejectedWithFailure(throttles.createCircuitBreaker(10, 0.5, 1, TimeUnit.SECONDS).execute(throwing));
+	}
+
+	@Test
+	public void batchLoader() throws Exception {
+		BatchLoader loader = new BatchLoader(promises, throwing, 10, 1, TimeUnit.MILLISECONDS);
+		assertRejectedWithFailure(loader.load("key"));
+	}
+}
@@ -0,0 +1,69 @@
+package uk.org.elsie.osgi.promises;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FailureCollectorServiceImplTest {
+	private ScheduledThreadPoolExecutor first;
+	private ScheduledThreadPoolExecutor second;
+	private FailureCollectorServiceImpl collector;
+
+	@Before
+	public void setUp() {
+		first = new ScheduledThreadPoolExecutor(1);
+		second = new ScheduledThreadPoolExecutor(1);
+		collector = new FailureCollectorServiceImpl();
+	}
+
+	@After
+	public void tearDown() {
+		collector.shutdown();
+		first.shutdownNow();
+		second.shutdownNow();
+	}
+
+	@Test
+	public void rebindingWhileSweepingLeavesOneLoop() throws Exception {
+		collector.setDelay(10);
+		collector.setDelayUnits(TimeUnit.MILLISECONDS);
+		collector.setScheduledExecutorService(first);
+
+		synchronized (collector) {
+			// let the sweep on the first executor start and wait for the lock
+			Thread.sleep(50);
+			collector.setDelay(1);
+			collector.setDelayUnits(TimeUnit.HOURS);
+			collector.setScheduledExecutorService(second);
+		}
+		for(int i = 0; i < 100 && first.getActiveCount() > 0; i++) {
+			Thread.sleep(5);
+		}
+		assertEquals(0, first.getActiveCount());
+		assertEquals(1, second.getQueue().size());
+	}
+
+	@Test
+	public void restartingWhileSweepingLeavesOneLoop() throws Exception {
+		collector.setDelay(10);
+		collector.setDelayUnits(TimeUnit.MILLISECONDS);
+		collector.setScheduledExecutorService(first);
+
+		synchronized (collector) {
+			Thread.sleep(50);
+			collector.setDelay(1);
+			collector.setDelayUnits(TimeUnit.HOURS);
+			collector.shutdown();
+			collector.start();
+		}
+		for(int i = 0; i < 100 && first.getActiveCount() > 0; i++) {
+			Thread.sleep(5);
+		}
+		assertEquals(1, first.getQueue().size());
+	}
+}
@@ -0,0 +1,86 @@
+package uk.org.elsie.osgi.promises;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ForkJoinPoolTest extends PromisesFixture {
+	private ForkJoinPool pool;
+
+	@Before
+	public void setUp() {
+		pool = PromisesServiceImpl.createAsyncForkJoinPool(1);
+		promises.setForkJoinPool(pool);
+	}
+
+	@After
+	public void tearDown() {
+		promises.unsetForkJoinPool(pool);
+		pool.shutdownNow();
+	}
+
+	private ForkJoinPool poolOf(Thread t) {
+		return t instanceof ForkJoinWorkerThread ? ((ForkJoinWorkerThread) t).getPool() : null;
+	}
+
+	@Test
+	public void continuationsRunOnThePool() throws Exception {
+		Object p = promises.ref("a").then(new Callback() {
+			@Override
+			public Object callback(Object input) {
+				return poolOf(Thread.currentThread());
+			}
+		}, null, null);
+		assertSame(pool, promises.waitFor(p, 5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void workerForksOntoItsOwnDeque() throws Exception {
+		Object queued = promises.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				int before = ForkJoinTask.getQueuedTaskCount();
+				Future<Object> f = promises.dispatch(new Callable<Object>() {
+					@Override
+					public Object call() {
+						return null;
+					}
+				});
+				assertTrue(f instanceof ForkJoinTask);
+				return ForkJoinTask.getQueuedTaskCount() - before;
+			}
+		}).get(5, TimeUnit.SECONDS);
+		assertEquals(1, queued);
+	}
+
+	@Test
+	public void waitingOnOnlyWorkerDoesNotStarvePool() throws Exception {
+		Object result = promises.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				final Deferred d = promises.defer();
+				// forked onto this worker's deque, behind the wait
+				promises.dispatch(new Callable<Object>() {
+					@Override
+					public Object call() {
+						d.resolve(poolOf(Thread.currentThread()));
+						return null;
+					}
+				});
+				return promises.waitFor(d.getPromise(), 2, TimeUnit.SECONDS);
+			}
+		}).get(5, TimeUnit.SECONDS);
+		assertSame(pool, result);
+	}
+}
@@ -0,0 +1,36 @@
+package uk.org.elsie.osgi.promises;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test helper which waits for a promise and records which way it settled.
+ * @author chris
+ */
+public class Outcome {
+	public final boolean resolved;
+	public final Object value;
+
+	private Outcome(boolean resolved, Object value) {
+		this.resolved = resolved;
+		this.value = value;
+	}
+
+	public static Outcome of(PromisesService promises, Object promise) throws Exception {
+		Object o = promises.waitFor(promises.when(promise, new Callback() {
+			@Override
+			public Object callback(Object input) {
+				return new Outcome(true, input);
+			}
+		}, new Callback() {
+			@Override
+			public Object callback(Object input) {
+				return new Outcome(false, input);
+			}
+		}), 5, TimeUnit.SECONDS);
+		return (Outcome) o;
+	}
+
+	public String toString() {
+		return (resolved ? "resolved:" : "rejected:") + value;
+	}
+}
@@ -0,0 +1,76 @@
+package uk.org.elsie.osgi.promises;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class PromiseScopeTest extends PromisesFixture {
+	@Test
+	public void closeCancelsOutstandingDeferreds() throws Exception {
+		PromiseScope scope = promises.openScope();
+		final AtomicInteger cancelled = new AtomicInteger();
+		Canceller canceller = new Canceller() {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				cancelled.incrementAndGet();
+				return true;
+			}
+		};
+		Deferred a = scope.defer(canceller);
+		Deferred b = scope.defer(canceller);
+		Deferred done = scope.defer(canceller);
+		done.resolve("done");
+		Outcome.of(promises, done.getPromise());
+		assertEquals(2, scope.getOutstanding());
+
+		assertEquals("resolved:null", Outcome.of(promises, scope.close()).toString());
+		assertEquals(2, cancelled.get());
+		assertSame(ExpectedFailure.CANCELLED, Outcome.of(promises, a.getPromise()).value);
+		assertSame(ExpectedFailure.CANCELLED, Outcome.of(promises, b.getPromise()).value);
+		assertEquals(0, scope.getOutstanding());
+	}
+
+	@Test
+	public void closeWaitsForDeferredsWithoutCanceller() throws Exception {
+		PromiseScope scope = promises.openScope();
+		Deferred d = scope.defer();
+		Promise closed = scope.close();
+		Outcome.of(promises, promises.delay(20, TimeUnit.MILLISECONDS));
+		assertFalse(closed.isDone());
+		d.resolve("late");
+		Outcome.of(promises, closed);
+	}
+
+	@Test
+	public void closeCancelsScopedTimers() throws Exception {
+		PromiseScope scope = promises.openScope();
+		Promise timer = scope.delay(1, TimeUnit.HOURS, "never");
+		Outcome.of(promises, scope.close());
+		assertSame(ExpectedFailure.CANCELLED, Outcome.of(promises, timer).value);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void noDeferredsAfterClose() {
+		PromiseScope scope = promises.openScope();
+		scope.close();
+		assertTrue(scope.isClosed());
+		scope.defer();
+	}
+
+	@Test
+	public void unobservedFailuresAreReleasedOnClose() throws Exception {
+		PromiseScope scope = promises.openScope();
+		Deferred d = scope.defer();
+		d.reject(new CallbackFailure("unobserved"));
+		Outcome.of(promises, promises.delay(20, TimeUnit.MILLISECONDS));
+		assertEquals(1, collector.outstanding());
+		Outcome.of(promises, scope.close());
+		assertEquals(0, collector.outstanding());
+	}
+}
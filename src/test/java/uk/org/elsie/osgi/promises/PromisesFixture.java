@@ -0,0 +1,47 @@
+package uk.org.elsie.osgi.promises;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+
+/**
+ * Test fixture with a promises service bound to its own scheduled
+ * executor and a failure collector which counts.
+ * @author chris
+ */
+public abstract class PromisesFixture {
+	protected ScheduledExecutorService executor;
+	protected PromisesServiceImpl promises;
+	protected CountingFailureCollector collector;
+
+	/**
+	 * @return how many threads the executor has.
+	 */
+	protected int threads() {
+		return 2;
+	}
+
+	/**
+	 * @return the promises service under test, not yet bound.
+	 */
+	protected PromisesServiceImpl createPromises() {
+		return new PromisesServiceImpl();
+	}
+
+	@Before
+	public void setUpPromises() {
+		executor = Executors.newScheduledThreadPool(threads());
+		promises = createPromises();
+		promises.setScheduledExecutorService(executor);
+		collector = new CountingFailureCollector();
+		promises.setFailureCollectorService(collector);
+	}
+
+	@After
+	public void tearDownPromises() {
+		promises.deactivate();
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,193 @@
+package uk.org.elsie.osgi.promises;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.elsie.osgi.promises.internal.Wire;
+
+public class RemotePromiseTest extends PromisesFixture {
+	private PromiseServer server;
+	private PromiseClient client;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new PromiseServer(promises);
+		server.registerFunction("upper", new Callback() {
+			@Override
+			public Object callback(Object input) {
+				return ((String) input).toUpperCase();
+			}
+		});
+		server.bind(new InetSocketAddress("127.0.0.1", 0));
+		client = new PromiseClient(promises);
+		client.connect(server.getLocalAddress());
+	}
+
+	@After
+	public void tearDown() {
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void pipelinedCallsRunOnTheServer() throws Exception {
+		server.export("name", "alice");
+		RemotePromise r = client.get("name").call("upper");
+		assertEquals("resolved:ALICE", Outcome.of(promises, r).toString());
+	}
+
+	@Test
+	public void rejectionWithPlainReasonStaysRejected() throws Exception {
+		server.export("missing", promises.reject("not found"));
+		assertEquals("rejected:not found", Outcome.of(promises, client.get("missing")).toString());
+	}
+
+	@Test
+	public void unknownTypesAreSentAsStrings() throws Exception {
+		Date d = new Date(0);
+		server.export("date", d);
+		assertEquals("resolved:" + d, Outcome.of(promises, client.get("date")).toString());
+	}
+
+	@Test
+	public void handlesAreDroppedOnceReleased() throws Exception {
+		server.export("name", "bob");
+		for(int i = 0; i < 20; i++) {
+			RemotePromise r = client.get("name").call("upper").call("upper");
+			assertEquals("resolved:BOB", Outcome.of(promises, r).toString());
+		}
+		for(int i = 0; i < 100 && server.getHandleCount() > 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, server.getHandleCount());
+	}
+
+	@Test
+	public void callsAfterReleaseCarryTheValue() throws Exception {
+		server.export("name", "carol");
+		RemotePromise r = client.get("name");
+		assertEquals("resolved:carol", Outcome.of(promises, r).toString());
+		Thread.sleep(50);
+		assertEquals("resolved:CAROL", Outcome.of(promises, r.call("upper")).toString());
+	}
+
+	@Test
+	public void cancellingAnImportLeavesTheExportAlone() throws Exception {
+		Deferred shared = promises.defer();
+		final boolean[] cancelled = { false };
+		shared.setCanceller(new Canceller() {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				cancelled[0] = true;
+				return true;
+			}
+		});
+		server.export("shared", shared.getPromise());
+
+		RemotePromise first = client.get("shared").call("upper");
+		RemotePromise second = client.get("shared");
+		client.flush();
+		Thread.sleep(50);
+		assertTrue(first.cancel(true));
+		Thread.sleep(50);
+		assertFalse(cancelled[0]);
+
+		shared.resolve("dave");
+		assertEquals("resolved:dave", Outcome.of(promises, second).toString());
+		assertFalse(Outcome.of(promises, first).resolved);
+	}
+
+	@Test
+	public void oversizedFrameClosesTheConnection() throws Exception {
+		server.close();
+		server = new PromiseServer(promises);
+		server.setMaxFrameSize(1024);
+		server.bind(new InetSocketAddress("127.0.0.1", 0));
+
+		Socket s = new Socket();
+		s.connect(server.getLocalAddress());
+		s.setSoTimeout(5000);
+		OutputStream out = s.getOutputStream();
+		out.write(new byte[] { 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, Wire.IMPORT });
+		out.flush();
+		InputStream in = s.getInputStream();
+		assertEquals(-1, in.read());
+		s.close();
+	}
+
+	@Test
+	public void closingFailsOutstandingPromises() throws Exception {
+		server.export("never", promises.defer().getPromise());
+		RemotePromise r = client.get("never");
+		client.flush();
+		client.close();
+		Outcome o = Outcome.of(promises, r);
+		assertFalse(o.resolved);
+	}
+
+	private void assertFrameClosesTheConnection(long length) throws Exception {
+		Socket s = new Socket();
+		s.connect(server.getLocalAddress());
+		s.setSoTimeout(5000);
+		Wire.Output frame = new Wire.Output();
+		int start = Wire.startFrame(frame, Wire.IMPORT);
+		Wire.writeVarint(frame, 1);
+		Wire.writeVarint(frame, length);
+		frame.write('x');
+		Wire.endFrame(frame, start);
+		OutputStream out = s.getOutputStream();
+		frame.writeTo(out);
+		out.flush();
+		assertEquals(-1, s.getInputStream().read());
+		s.close();
+	}
+
+	@Test
+	public void lengthsLongerThanTheFrameCloseTheConnection() throws Exception {
+		assertFrameClosesTheConnection(Integer.MAX_VALUE);
+		assertFrameClosesTheConnection(-1);
+		server.export("name", "erin");
+		assertEquals("resolved:erin", Outcome.of(promises, client.get("name")).toString());
+	}
+
+	@Test
+	public void closingTheConnectionCancelsCallsInFlight() throws Exception {
+		final CountDownLatch cancelled = new CountDownLatch(1);
+		server.registerFunction("hang", new Callback() {
+			@Override
+			public Object callback(Object input) {
+				Deferred d = promises.defer();
+				d.setCanceller(new Canceller() {
+					@Override
+					public boolean cancel(boolean mayInterruptIfRunning) {
+						cancelled.countDown();
+						return true;
+					}
+				});
+				return d.getPromise();
+			}
+		});
+		server.export("name", "frank");
+		client.get("name").call("hang");
+		client.flush();
+		for(int i = 0; i < 100 && server.getHandleCount() < 2; i++) {
+			Thread.sleep(10);
+		}
+		client.close();
+		assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+		assertEquals(0, server.getHandleCount());
+	}
+}
@@ -0,0 +1,129 @@
+package uk.org.elsie.osgi.promises;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.elsie.osgi.promises.internal.Progress;
+
+public class RetryTest extends PromisesFixture {
+	private AtomicInteger attempts;
+
+	private final Backoff quick = new Backoff(1, 5, TimeUnit.MILLISECONDS);
+
+	@Before
+	public void setUp() {
+		attempts = new AtomicInteger();
+	}
+
+	/**
+	 * @return an operation which fails until the given attempt, then resolves with the attempt number.
+	 */
+	private Callback succeedingOn(final int success) {
+		return new Callback() {
+			@Override
+			public Object callback(Object attempt) {
+				attempts.incrementAndGet();
+				if((Integer) attempt < success) {
+					return promises.reject(new ExpectedFailure("attempt " + attempt));
+				}
+				return attempt;
+			}
+		};
+	}
+
+	@Test
+	public void retriesUntilSuccess() throws Exception {
+		Outcome o = Outcome.of(promises, promises.retry(succeedingOn(3), 5, quick));
+		assertEquals("resolved:3", o.toString());
+		assertEquals(3, attempts.get());
+	}
+
+	@Test
+	public void progressReportsEachRetry() throws Exception {
+		final List<Integer> reported = Collections.synchronizedList(new ArrayList<Integer>());
+		final Deferred first = promises.defer();
+		final Callback later = succeedingOn(3);
+		Promise p = promises.retry(new Callback() {
+			@Override
+			public Object callback(Object attempt) {
+				return (Integer) attempt == 1 ? first.getPromise() : later.callback(attempt);
+			}
+		}, 5, quick);
+		p.then(null, null, new Callback() {
+			@Override
+			public Object callback(Object progress) {
+				reported.add(((Progress) progress).getCompleted());
+				return null;
+			}
+		});
+		first.reject(new ExpectedFailure("attempt 1"));
+		assertEquals("resolved:3", Outcome.of(promises, p).toString());
+		assertEquals(Arrays.asList(2, 3), reported);
+	}
+
+	@Test
+	public void rejectsWithLastFailureOnceAttemptsRunOut() throws Exception {
+		Outcome o = Outcome.of(promises, promises.retry(succeedingOn(10), 4, quick));
+		assertEquals("rejected:attempt 4", o.toString());
+		assertEquals(4, attempts.get());
+	}
+
+	@Test
+	public void retryPredicateCanDecline() throws Exception {
+		Promise p = promises.retry(succeedingOn(10), 5, quick, new Callback() {
+			@Override
+			public Object callback(Object reason) {
+				return Boolean.FALSE;
+			}
+		});
+		assertEquals("rejected:attempt 1", Outcome.of(promises, p).toString());
+		assertEquals(1, attempts.get());
+	}
+
+	@Test
+	public void cancellingStopsFurtherAttempts() throws Exception {
+		Promise p = promises.retry(succeedingOn(10), 5, new Backoff(1, 1, TimeUnit.HOURS, 2.0, 0.0));
+		Outcome.of(promises, promises.delay(20, TimeUnit.MILLISECONDS));
+		assertTrue(p.cancel(true));
+		Outcome o = Outcome.of(promises, p);
+		assertFalse(o.resolved);
+		assertSame(ExpectedFailure.CANCELLED, o.value);
+		assertEquals(1, attempts.get());
+	}
+
+	@Test
+	public void backoffGrowsToItsCap() {
+		Backoff b = new Backoff(10, 50, TimeUnit.MILLISECONDS, 2.0, 0.0);
+		assertEquals(10, b.getDelay(1));
+		assertEquals(20, b.getDelay(2));
+		assertEquals(40, b.getDelay(3));
+		assertEquals(50, b.getDelay(4));
+		assertEquals(50, b.getDelay(100));
+	}
+
+	@Test
+	public void fullJitterStaysWithinTheDelay() {
+		Backoff b = new Backoff(100, 100, TimeUnit.MILLISECONDS);
+		for(int i = 0; i < 1000; i++) {
+			long d = b.getDelay(1);
+			assertTrue(d >= 0 && d <= 100);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void jitterIsRangeChecked() {
+		new Backoff(1, 1, TimeUnit.MILLISECONDS).setJitter(1.5);
+	}
+}
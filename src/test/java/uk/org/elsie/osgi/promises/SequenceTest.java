@@ -0,0 +1,86 @@
+package uk.org.elsie.osgi.promises;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class SequenceTest extends PromisesFixture {
+	private Sequence upTo(final int count) {
+		return promises.sequence(new Callback() {
+			@Override
+			public Object callback(Object index) {
+				return (Integer) index < count ? index : Sequence.END;
+			}
+		});
+	}
+
+	@Test
+	public void mapAndFilterInOrder() throws Exception {
+		Sequence s = upTo(10).map(new Callback() {
+			@Override
+			public Object callback(Object input) {
+				return promises.ref((Integer) input * 10);
+			}
+		}).filter(new Callback() {
+			@Override
+			public Object callback(Object input) {
+				return (Integer) input % 20 == 0;
+			}
+		});
+		assertEquals("resolved:[0, 20, 40, 60, 80]", Outcome.of(promises, s.collect()).toString());
+	}
+
+	@Test
+	public void filterSkipsLongRuns() throws Exception {
+		final int count = 100000;
+		Sequence s = upTo(count).filter(new Callback() {
+			@Override
+			public Object callback(Object input) {
+				return (Integer) input == count - 1;
+			}
+		});
+		assertEquals("resolved:" + (count - 1), Outcome.of(promises, s.next()).toString());
+		assertSame(Sequence.END, Outcome.of(promises, s.next()).value);
+	}
+
+	@Test
+	public void predicateFailureRejectsPull() throws Exception {
+		Sequence s = upTo(3).filter(new Callback() {
+			@Override
+			public Object callback(Object input) {
+				if((Integer) input == 1) {
+					throw new ExpectedFailureException(new ExpectedFailure("bad"));
+				}
+				return Boolean.FALSE;
+			}
+		});
+		Outcome o = Outcome.of(promises, s.next());
+		assertFalse(o.resolved);
+	}
+
+	@Test
+	public void reduceFoldsEveryValue() throws Exception {
+		Promise sum = upTo(101).reduce(0, new Reducer() {
+			@Override
+			public Object reduce(Object accumulator, Object value) {
+				return (Integer) accumulator + (Integer) value;
+			}
+		});
+		assertEquals("resolved:5050", Outcome.of(promises, sum).toString());
+	}
+
+	@Test
+	public void sequenceOfPromisesYieldsInSettleOrder() throws Exception {
+		Deferred first = promises.defer();
+		Deferred second = promises.defer();
+		Sequence s = promises.sequence(new Object[] { first.getPromise(), second.getPromise() });
+		Promise a = s.next();
+		second.resolve("second");
+		assertEquals("resolved:second", Outcome.of(promises, a).toString());
+		first.resolve("first");
+		assertEquals("resolved:first", Outcome.of(promises, s.next()).toString());
+		assertSame(Sequence.END, Outcome.of(promises, s.next()).value);
+	}
+}
@@ -0,0 +1,107 @@
+package uk.org.elsie.osgi.promises;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SettledPromiseTest extends PromisesFixture {
+	@Override
+	protected int threads() {
+		return 1;
+	}
+
+	private Callback handled = new Callback() {
+		@Override
+		public Object callback(Object input) {
+			return null;
+		}
+	};
+
+	private void drain() throws Exception {
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}).get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void handledRejectionIsNotRecorded() throws Exception {
+		// hold the executor so every errback is added before the check runs
+		final CountDownLatch hold = new CountDownLatch(1);
+		executor.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return hold.await(5, TimeUnit.SECONDS);
+			}
+		});
+		for(int i = 0; i < 1000; i++) {
+			promises.reject(new CallbackFailure("handled")).then(null, handled);
+		}
+		hold.countDown();
+		drain();
+		assertEquals(0, collector.failed.get());
+	}
+
+	@Test
+	public void rejectionHandledAfterCheckIsCollected() throws Exception {
+		for(int i = 0; i < 1000; i++) {
+			promises.reject(new CallbackFailure("handled")).then(null, handled);
+		}
+		drain();
+		assertEquals(0, collector.outstanding());
+	}
+
+	@Test
+	public void unhandledRejectionIsRecordedOnce() throws Exception {
+		Promise p = promises.reject(new CallbackFailure("dropped"));
+		drain();
+		assertEquals(1, collector.failed.get());
+		p.then(null, handled);
+		assertEquals(0, collector.outstanding());
+	}
+
+	@Test
+	public void rejectionsShareOneCheck() throws Exception {
+		final CountDownLatch running = new CountDownLatch(1);
+		final CountDownLatch hold = new CountDownLatch(1);
+		executor.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				running.countDown();
+				return hold.await(5, TimeUnit.SECONDS);
+			}
+		});
+		running.await(5, TimeUnit.SECONDS);
+		for(int i = 0; i < 1000; i++) {
+			promises.reject(new CallbackFailure("dropped"));
+		}
+		assertEquals(1, ((ThreadPoolExecutor) executor).getQueue().size());
+		hold.countDown();
+		drain();
+		assertEquals(1000, collector.failed.get());
+
+		promises.reject(new CallbackFailure("later"));
+		drain();
+		assertEquals(1001, collector.failed.get());
+	}
+
+	@Test
+	public void expectedFailuresAreNotRecorded() throws Exception {
+		promises.reject(ExpectedFailure.CANCELLED);
+		drain();
+		assertEquals(0, collector.failed.get());
+	}
+
+	@Test
+	public void commonValuesShareOnePromise() {
+		assertSame(promises.ref(null), promises.ref(null));
+		assertSame(promises.ref(Boolean.TRUE), promises.ref(Boolean.TRUE));
+	}
+}
@@ -0,0 +1,105 @@
+package uk.org.elsie.osgi.promises;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class WaitForTest extends PromisesFixture {
+	@Override
+	protected int threads() {
+		return 1;
+	}
+
+	@Test
+	public void taskOnOnlyThreadCanWaitForContinuation() throws Exception {
+		Object result = promises.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				Object p = promises.ref("a").then(new Callback() {
+					@Override
+					public Object callback(Object input) {
+						return input + "b";
+					}
+				}, null, null);
+				return promises.waitFor(p, 2, TimeUnit.SECONDS);
+			}
+		}).get(5, TimeUnit.SECONDS);
+		assertEquals("ab", result);
+	}
+
+	@Test
+	public void taskOnOnlyThreadCanWaitForDelay() throws Exception {
+		long start = System.nanoTime();
+		Object result = promises.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return promises.waitFor(promises.delay(50, TimeUnit.MILLISECONDS, "late"), 2, TimeUnit.SECONDS);
+			}
+		}).get(5, TimeUnit.SECONDS);
+		assertEquals("late", result);
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+	}
+
+	@Test
+	public void helpingThreadSleepsWhileIdle() throws Exception {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final Deferred d = promises.defer();
+		Thread resolver = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(300);
+				} catch (InterruptedException e) {
+				}
+				d.resolve("done");
+			}
+		};
+		resolver.start();
+		long cpu = (Long) promises.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				long before = threads.getCurrentThreadCpuTime();
+				assertEquals("done", promises.waitFor(d.getPromise(), 2, TimeUnit.SECONDS));
+				return threads.getCurrentThreadCpuTime() - before;
+			}
+		}).get(5, TimeUnit.SECONDS);
+		assertTrue("helper used " + cpu + "ns of cpu", TimeUnit.NANOSECONDS.toMillis(cpu) < 100);
+	}
+
+	@Test
+	public void sharedExecutorIsLeftAlone() throws Exception {
+		ThreadFactory factory = Executors.defaultThreadFactory();
+		ScheduledThreadPoolExecutor shared = new ScheduledThreadPoolExecutor(1, factory);
+		try {
+			promises.setScheduledExecutorService(shared);
+			assertSame(factory, shared.getThreadFactory());
+
+			// a task of another bundle's waits as on any other thread
+			final Deferred d = promises.defer();
+			Object result = shared.submit(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					try {
+						return promises.waitFor(d.getPromise(), 50, TimeUnit.MILLISECONDS);
+					} catch (TimeoutException e) {
+						return "timed out";
+					}
+				}
+			}).get(5, TimeUnit.SECONDS);
+			assertEquals("timed out", result);
+		} finally {
+			shared.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package uk.org.elsie.osgi.promises;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class WhenEachTest extends PromisesFixture {
+	@Test
+	public void resultsKeepTheirPositions() throws Exception {
+		Deferred[] deferreds = new Deferred[3];
+		Object[] ps = new Object[3];
+		for(int i = 0; i < 3; i++) {
+			deferreds[i] = promises.defer();
+			ps[i] = deferreds[i].getPromise();
+		}
+		Promise all = promises.whenEach(ps);
+		deferreds[2].resolve("c");
+		deferreds[0].resolve("a");
+		deferreds[1].resolve("b");
+
+		Outcome o = Outcome.of(promises, all);
+		assertTrue(o.resolved);
+		assertArrayEquals(new Object[] { "a", "b", "c" }, (Object[]) o.value);
+	}
+
+	@Test
+	public void rejectsOnceWhenSeveralFail() throws Exception {
+		Deferred first = promises.defer();
+		Deferred second = promises.defer();
+		Promise all = promises.whenEach(new Object[] { first.getPromise(), second.getPromise() });
+		final AtomicInteger rejections = new AtomicInteger();
+		all.then(null, new Callback() {
+			@Override
+			public Object callback(Object input) {
+				rejections.incrementAndGet();
+				return null;
+			}
+		});
+		// the two rejections race on the executor, so either may win
+		first.reject(new ExpectedFailure("first"));
+		second.reject(new ExpectedFailure("second"));
+
+		Outcome o = Outcome.of(promises, all);
+		assertFalse(o.resolved);
+		Object message = ((Failure) o.value).getMessage();
+		assertTrue(String.valueOf(message), "first".equals(message) || "second".equals(message));
+		Outcome.of(promises, first.getPromise());
+		Outcome.of(promises, second.getPromise());
+		Thread.sleep(50);
+		assertEquals(1, rejections.get());
+	}
+}
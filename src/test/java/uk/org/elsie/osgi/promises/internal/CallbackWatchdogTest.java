@@ -0,0 +1,159 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import uk.org.elsie.osgi.promises.PromisesFixture;
+
+public class CallbackWatchdogTest extends PromisesFixture {
+	@Override
+	protected int threads() {
+		return 1;
+	}
+
+	private Callable<Object> nothing = new Callable<Object>() {
+		@Override
+		public Object call() throws Exception {
+			return null;
+		}
+	};
+
+	@Test
+	public void completedTasksAreForgotten() throws Exception {
+		CallbackWatchdog w = new CallbackWatchdog(1, TimeUnit.HOURS);
+		List<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for(int i = 0; i < 1000; i++) {
+			futures.add(executor.submit(w.wrap(nothing)));
+		}
+		for(Future<Object> f : futures) {
+			f.get(5, TimeUnit.SECONDS);
+		}
+		w.sample();
+		assertEquals(0, w.getQueueDepth());
+		assertEquals(0, w.getOldestQueuedAge(TimeUnit.NANOSECONDS));
+	}
+
+	@Test
+	public void waitingTaskIsCountedWhateverItsPosition() throws Exception {
+		CallbackWatchdog w = new CallbackWatchdog(1, TimeUnit.HOURS);
+		final CountDownLatch hold = new CountDownLatch(1);
+		Callable<Object> blocking = new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return hold.await(5, TimeUnit.SECONDS);
+			}
+		};
+		Callable<Object> never = w.wrap(nothing);
+		Future<Object> running = executor.submit(w.wrap(blocking));
+		Future<Object> queued = executor.submit(w.wrap(nothing));
+		Thread.sleep(20);
+		w.sample();
+		assertEquals(2, w.getQueueDepth());
+		assertTrue(w.getOldestQueuedAge(TimeUnit.MILLISECONDS) >= 20);
+
+		hold.countDown();
+		running.get(5, TimeUnit.SECONDS);
+		queued.get(5, TimeUnit.SECONDS);
+		w.sample();
+		assertEquals(1, w.getQueueDepth());
+
+		w.discard(never);
+		w.sample();
+		assertEquals(0, w.getQueueDepth());
+		assertEquals(0, w.getOldestQueuedAge(TimeUnit.NANOSECONDS));
+	}
+
+	@Test
+	public void rejectedTaskIsForgotten() throws Exception {
+		promises.setWatchdogThreshold(1, TimeUnit.HOURS);
+		executor.shutdown();
+		try {
+			promises.submit(nothing);
+			fail("expected rejection");
+		} catch (RejectedExecutionException e) {
+		}
+		assertEquals(0, promises.getWatchdog().getQueueDepth());
+	}
+
+	@Test
+	public void longRunningCallbackIsStalled() throws Exception {
+		final CallbackWatchdog w = new CallbackWatchdog(10, TimeUnit.MILLISECONDS);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch hold = new CountDownLatch(1);
+		Future<Object> f = executor.submit(w.wrap(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				started.countDown();
+				return hold.await(5, TimeUnit.SECONDS);
+			}
+		}));
+		started.await(5, TimeUnit.SECONDS);
+		Thread.sleep(30);
+		w.sample();
+		assertEquals(1, w.getStalledCount());
+
+		hold.countDown();
+		f.get(5, TimeUnit.SECONDS);
+		w.sample();
+		assertEquals(0, w.getStalledCount());
+	}
+
+	@Test
+	public void samplingRacesWithCallbacksSafely() throws Exception {
+		final CallbackWatchdog w = new CallbackWatchdog(0, TimeUnit.NANOSECONDS);
+		final Callable<Object> spin = new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return null;
+			}
+		};
+		Future<?> f = executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				for(int i = 0; i < 10000; i++) {
+					try {
+						w.wrap(spin).call();
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}
+		});
+		while(!f.isDone()) {
+			w.sample();
+		}
+		f.get();
+	}
+
+	@Test
+	public void deactivateStopsWatchdogThread() throws Exception {
+		promises.setWatchdogThreshold(1, TimeUnit.HOURS);
+		assertTrue(watchdogThreadAlive());
+		promises.deactivate();
+		for(int i = 0; i < 100 && watchdogThreadAlive(); i++) {
+			Thread.sleep(10);
+		}
+		assertFalse(watchdogThreadAlive());
+	}
+
+	private boolean watchdogThreadAlive() {
+		for(Thread t : Thread.getAllStackTraces().keySet()) {
+			if(t.getName().equals("promises-watchdog") && t.isAlive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
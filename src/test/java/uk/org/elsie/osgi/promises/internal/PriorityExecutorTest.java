@@ -0,0 +1,81 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.elsie.osgi.promises.PromisesServiceImpl;
+
+public class PriorityExecutorTest {
+	private static final int HIGH = 0;
+	private static final int LOW = 1;
+
+	private PriorityExecutor executor;
+
+	@Before
+	public void setUp() {
+		// with no executor bound the tokens are held, so next() is only run here
+		executor = new PriorityExecutor(new PromisesServiceImpl(), 2, 3);
+	}
+
+	private void submit(final String name, int priority) {
+		executor.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return name;
+			}
+		}, priority);
+	}
+
+	private Object next() throws Exception {
+		@SuppressWarnings("unchecked")
+		FutureTask<Object> task = (FutureTask<Object>) executor.next();
+		task.run();
+		return task.get();
+	}
+
+	@Test
+	public void higherLaneGoesFirst() throws Exception {
+		submit("low", LOW);
+		submit("high", HIGH);
+		assertEquals("high", next());
+		assertEquals("low", next());
+		assertNull(executor.next());
+	}
+
+	@Test
+	public void starvedLaneGetsATurn() throws Exception {
+		submit("low", LOW);
+		for(int i = 0; i < 5; i++) {
+			submit("high", HIGH);
+		}
+		assertEquals("high", next());
+		assertEquals("high", next());
+		assertEquals("low", next());
+		assertEquals("high", next());
+	}
+
+	@Test
+	public void takingFromALaneResetsItsCount() throws Exception {
+		submit("low", LOW);
+		submit("high", HIGH);
+		submit("high", HIGH);
+		assertEquals("high", next());
+		assertEquals("high", next());
+		// taken only because nothing else was waiting, but still a turn
+		assertEquals("low", next());
+
+		submit("low", LOW);
+		for(int i = 0; i < 5; i++) {
+			submit("high", HIGH);
+		}
+		assertEquals("high", next());
+		assertEquals("high", next());
+		assertEquals("low", next());
+	}
+}
@@ -0,0 +1,110 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.elsie.osgi.promises.Callback;
+import uk.org.elsie.osgi.promises.Deferred;
+import uk.org.elsie.osgi.promises.ExpectedFailure;
+import uk.org.elsie.osgi.promises.Outcome;
+import uk.org.elsie.osgi.promises.Promise;
+import uk.org.elsie.osgi.promises.PromisesFixture;
+
+public class SemaphoreBulkheadTest extends PromisesFixture {
+	private SemaphoreBulkhead bulkhead;
+
+	@Override
+	protected int threads() {
+		return 1;
+	}
+
+	@Before
+	public void setUp() {
+		bulkhead = new SemaphoreBulkhead(promises, 1);
+	}
+
+	private Callback returning(final Object result) {
+		return new Callback() {
+			@Override
+			public Object callback(Object input) {
+				return result;
+			}
+		};
+	}
+
+	@Test
+	public void onlyMaxConcurrentRunAtOnce() throws Exception {
+		Deferred first = promises.defer();
+		Promise a = bulkhead.execute(returning(first.getPromise()));
+		Promise b = bulkhead.execute(returning("second"));
+		Outcome.of(promises, promises.delay(20, TimeUnit.MILLISECONDS));
+		assertFalse(b.isDone());
+		assertEquals(0, bulkhead.getAvailablePermits());
+
+		first.resolve("first");
+		assertEquals("resolved:first", Outcome.of(promises, a).toString());
+		assertEquals("resolved:second", Outcome.of(promises, b).toString());
+		assertEquals(1, bulkhead.getAvailablePermits());
+	}
+
+	@Test
+	public void cancelledWaitersLeaveTheQueueAtOnce() throws Exception {
+		Outcome.of(promises, bulkhead.acquire());
+		for(int i = 0; i < 1000; i++) {
+			assertTrue(bulkhead.acquire().cancel(true));
+		}
+		assertEquals(0, bulkhead.getQueueLength());
+	}
+
+	@Test
+	public void timedOutWaitersLeaveTheQueueAtOnce() throws Exception {
+		Outcome.of(promises, bulkhead.acquire());
+		Promise last = null;
+		for(int i = 0; i < 100; i++) {
+			last = bulkhead.acquire(10, TimeUnit.MILLISECONDS);
+		}
+		assertSame(ExpectedFailure.TIMED_OUT, Outcome.of(promises, last).value);
+		assertEquals(0, bulkhead.getQueueLength());
+
+		// the queue still works once the permit is back
+		bulkhead.release();
+		assertEquals("resolved:ok", Outcome.of(promises, bulkhead.execute(returning("ok"))).toString());
+	}
+
+	@Test
+	public void cancelAfterGrantStopsTheOperation() throws Exception {
+		// hold the only thread so the granted operation cannot start yet
+		final CountDownLatch hold = new CountDownLatch(1);
+		executor.submit(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return hold.await(5, TimeUnit.SECONDS);
+			}
+		});
+		final AtomicInteger runs = new AtomicInteger();
+		Promise p = bulkhead.execute(new Callback() {
+			@Override
+			public Object callback(Object input) {
+				return runs.incrementAndGet();
+			}
+		});
+		assertEquals(0, bulkhead.getAvailablePermits());
+		assertTrue(p.cancel(true));
+		hold.countDown();
+
+		assertSame(ExpectedFailure.CANCELLED, Outcome.of(promises, p).value);
+		Outcome.of(promises, promises.delay(20, TimeUnit.MILLISECONDS));
+		assertEquals(0, runs.get());
+		assertEquals(1, bulkhead.getAvailablePermits());
+	}
+}
@@ -0,0 +1,184 @@
+package uk.org.elsie.osgi.promises.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.org.elsie.osgi.promises.Callback;
+import uk.org.elsie.osgi.promises.Canceller;
+import uk.org.elsie.osgi.promises.CircuitBreaker.State;
+import uk.org.elsie.osgi.promises.Deferred;
+import uk.org.elsie.osgi.promises.ExpectedFailure;
+import uk.org.elsie.osgi.promises.Outcome;
+import uk.org.elsie.osgi.promises.Promise;
+import uk.org.elsie.osgi.promises.PromisesFixture;
+
+public class SlidingWindowCircuitBreakerTest extends PromisesFixture {
+	private SlidingWindowCircuitBreaker breaker;
+
+	@Before
+	public void setUp() {
+		breaker = new SlidingWindowCircuitBreaker(promises, 2, 0.5, 50, TimeUnit.MILLISECONDS);
+	}
+
+	private Callback fail = new Callback() {
+		@Override
+		public Object callback(Object input) {
+			return new ExpectedFailure("down");
+		}
+	};
+
+	private Callback succeed = new Callback() {
+		@Override
+		public Object callback(Object input) {
+			return "up";
+		}
+	};
+
+	private Callback returning(final Object result) {
+		return new Callback() {
+			@Override
+			public Object callback(Object input) {
+				return result;
+			}
+		};
+	}
+
+	private void trip() {
+		breaker.execute(fail);
+		breaker.execute(fail);
+		assertEquals(State.OPEN, breaker.getState());
+	}
+
+	private void awaitState(State expected) throws InterruptedException {
+		for(int i = 0; i < 200 && breaker.getState() != expected; i++) {
+			Thread.sleep(5);
+		}
+		assertEquals(expected, breaker.getState());
+	}
+
+	@Test
+	public void openCallsShareOneRejection() throws Exception {
+		trip();
+		Promise first = breaker.execute(succeed);
+		Promise second = breaker.execute(succeed);
+		assertSame(first, second);
+		Outcome o = Outcome.of(promises, first);
+		assertFalse(o.resolved);
+		assertSame(breaker.getOpenFailure(), o.value);
+	}
+
+	@Test
+	public void callsAdmittedWhileClosedAreNotProbes() throws Exception {
+		Deferred late = promises.defer();
+		breaker.execute(returning(late.getPromise()));
+		trip();
+		awaitState(State.HALF_OPEN);
+
+		late.resolve("late");
+		Outcome.of(promises, late.getPromise());
+		assertEquals(State.HALF_OPEN, breaker.getState());
+
+		breaker.execute(succeed);
+		assertEquals(State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void closedCallsSettlingLateDoNotTripAgain() throws Exception {
+		Deferred late = promises.defer();
+		breaker.execute(returning(late.getPromise()));
+		trip();
+		awaitState(State.HALF_OPEN);
+		breaker.execute(succeed);
+		assertEquals(State.CLOSED, breaker.getState());
+
+		late.reject(new ExpectedFailure("late"));
+		Outcome.of(promises, late.getPromise());
+		breaker.execute(succeed);
+		assertEquals(State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void hungProbeReopensBreaker() throws Exception {
+		breaker.setProbeTimeout(20, TimeUnit.MILLISECONDS);
+		trip();
+		awaitState(State.HALF_OPEN);
+		breaker.execute(returning(promises.defer().getPromise()));
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		awaitState(State.OPEN);
+		awaitState(State.HALF_OPEN);
+		breaker.execute(succeed);
+		assertEquals(State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void ratesAreRangeChecked() {
+		assertTrue(rejects(0));
+		assertTrue(rejects(-0.5));
+		assertTrue(rejects(1.5));
+		assertTrue(rejects(Double.NaN));
+		assertFalse(rejects(1));
+		try {
+			breaker.setSlowCallRateThreshold(2);
+			assertTrue("expected IllegalArgumentException", false);
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	private boolean rejects(double threshold) {
+		try {
+			new SlidingWindowCircuitBreaker(promises, 2, threshold, 50, TimeUnit.MILLISECONDS);
+			return false;
+		} catch (IllegalArgumentException e) {
+			return true;
+		}
+	}
+
+	private Deferred cancellable() {
+		Deferred d = promises.defer();
+		d.setCanceller(new Canceller() {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				return true;
+			}
+		});
+		return d;
+	}
+
+	@Test
+	public void cancelledCallsAreNotCounted() throws Exception {
+		for(int i = 0; i < 4; i++) {
+			Promise p = breaker.execute(returning(cancellable().getPromise()));
+			assertTrue(p.cancel(true));
+			assertFalse(Outcome.of(promises, p).resolved);
+		}
+		assertEquals(State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void cancelledProbeFreesItsPlace() throws Exception {
+		trip();
+		awaitState(State.HALF_OPEN);
+		Promise probe = breaker.execute(returning(cancellable().getPromise()));
+		assertTrue(probe.cancel(true));
+		Outcome.of(promises, probe);
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		assertEquals("resolved:up", Outcome.of(promises, breaker.execute(succeed)).toString());
+		assertEquals(State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void worksWhenRejectingImmediately() throws Exception {
+		promises.setRejectImmediately(true);
+		breaker = new SlidingWindowCircuitBreaker(promises, 2, 0.5, 50, TimeUnit.MILLISECONDS);
+		trip();
+		Outcome o = Outcome.of(promises, breaker.execute(succeed));
+		assertSame(breaker.getOpenFailure(), o.value);
+	}
+}